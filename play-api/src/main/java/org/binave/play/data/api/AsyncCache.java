@@ -0,0 +1,63 @@
+/*
+ * Copyright (c) 2017 bin jin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.binave.play.data.api;
+
+import java.util.concurrent.CompletionStage;
+
+/**
+ * 异步缓存接口
+ * 不阻塞调用线程，用于 IO 线程中组合调用
+ *
+ * @see Cache
+ * @see Adder
+ * @author by bin jin on 2017/6/13.
+ * @since 1.8
+ */
+public interface AsyncCache {
+
+    /**
+     * 地址
+     * 用于分配 pool id
+     */
+    String getUrl();
+
+    /**
+     * 放入
+     */
+    CompletionStage<Object> put(Object key, Object value);
+
+    /**
+     * 删除
+     */
+    CompletionStage<Object> remove(Object key);
+
+    /**
+     * 取出
+     */
+    <T> CompletionStage<T> get(Object key, Class<T> type);
+
+    /**
+     * 查看是否存在
+     */
+    CompletionStage<Boolean> exist(Object key);
+
+    /**
+     * 在有值的情况下，才会累加
+     */
+    CompletionStage<Long> adder(Object key, long value);
+
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright (c) 2017 bin jin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.binave.play.data.api;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 批量读写
+ * 一次通信完成多个 key 的操作
+ *
+ * @author by bin jin on 2017/6/9.
+ * @since 1.8
+ */
+public interface Batch {
+
+    /**
+     * 批量取出
+     *
+     * @return 与 keys 顺序对应，不存在的为 null
+     */
+    <T> List<T> getAll(List<?> keys, Class<T> type);
+
+    /**
+     * 批量放入
+     */
+    Object putAll(Map<?, ?> map);
+
+}
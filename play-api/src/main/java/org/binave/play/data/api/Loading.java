@@ -0,0 +1,37 @@
+/*
+ * Copyright (c) 2017 bin jin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.binave.play.data.api;
+
+import java.util.function.Function;
+
+/**
+ * 缺失时加载的缓存
+ * 同一个 key 同时缺失时只加载一次，其他调用等待结果
+ *
+ * @author by bin jin on 2017/6/24.
+ * @since 1.8
+ */
+public interface Loading extends Cache {
+
+    /**
+     * 取出，不存在时通过 loader 加载并放入
+     *
+     * @param loader    加载数据，返回 null 时不放入
+     */
+    <T> T get(Object key, Class<T> type, Function<Object, ? extends T> loader);
+
+}
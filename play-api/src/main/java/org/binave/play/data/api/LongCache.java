@@ -0,0 +1,48 @@
+/*
+ * Copyright (c) 2017 bin jin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.binave.play.data.api;
+
+/**
+ * 以 long 为 key 的缓存接口
+ * 用于玩家 id 等场景，避免 key 装箱
+ *
+ * @author by bin jin on 2017/6/5.
+ * @since 1.8
+ */
+public interface LongCache extends Cache {
+
+    /**
+     * 放入
+     */
+    Object put(long key, Object value);
+
+    /**
+     * 删除
+     */
+    Object remove(long key);
+
+    /**
+     * 取出
+     */
+    <T> T get(long key, Class<T> type);
+
+    /**
+     * 查看是否存在
+     */
+    boolean exist(long key);
+
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright (c) 2017 bin jin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.binave.play.data.api;
+
+/**
+ * 按数值读取
+ * 直接从返回的字节解析，不经过字符串
+ *
+ * @author by bin jin on 2017/6/22.
+ * @since 1.8
+ */
+public interface Numeric {
+
+    /**
+     * 小数部分截断
+     *
+     * @param defaultValue  没有值时返回
+     */
+    long getLong(Object key, long defaultValue);
+
+    /**
+     * 小数部分截断，超出范围抛出 {@link NumberFormatException}
+     *
+     * @param defaultValue  没有值时返回
+     */
+    int getInt(Object key, int defaultValue);
+
+    /**
+     * @param defaultValue  没有值时返回
+     */
+    double getDouble(Object key, double defaultValue);
+
+}
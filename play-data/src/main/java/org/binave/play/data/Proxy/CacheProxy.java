@@ -17,7 +17,15 @@
 package org.binave.play.data.Proxy;
 
 import org.binave.common.api.SyncProxy;
+import org.binave.play.data.api.Batch;
 import org.binave.play.data.api.Cache;
+import org.binave.play.data.api.Loading;
+import org.binave.play.data.api.Numeric;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
 
 /**
  * 用于保证一致性 hash 在实体节点失效时，虚拟节点同时失效
@@ -25,7 +33,7 @@ import org.binave.play.data.api.Cache;
  * @author by bin jin on 2017/5/17.
  * @since 1.8
  */
-public class CacheProxy implements Cache, SyncProxy<Cache> {
+public class CacheProxy implements Cache, Batch, Numeric, Loading, SyncProxy<Cache> {
 
     private Cache cache;
 
@@ -43,6 +51,13 @@ public class CacheProxy implements Cache, SyncProxy<Cache> {
         return this.cache == null;
     }
 
+    /**
+     * 被代理的缓存
+     */
+    public Cache getCache() {
+        return this.cache;
+    }
+
     @Override
     public String getUrl() {
         return this.cache.getUrl();
@@ -73,6 +88,77 @@ public class CacheProxy implements Cache, SyncProxy<Cache> {
         this.cache.trim(live);
     }
 
+    /**
+     * 不支持批量的缓存，逐个读取
+     */
+    @Override
+    public <T> List<T> getAll(List<?> keys, Class<T> type) {
+        Cache cache = this.cache;
+        if (cache instanceof Batch) return ((Batch) cache).getAll(keys, type);
+        List<T> result = new ArrayList<>(keys.size());
+        for (Object key : keys) result.add(cache.get(key, type));
+        return result;
+    }
+
+    /**
+     * 同上
+     */
+    @Override
+    public Object putAll(Map<?, ?> map) {
+        Cache cache = this.cache;
+        if (cache instanceof Batch) return ((Batch) cache).putAll(map);
+        for (Map.Entry<?, ?> entry : map.entrySet()) cache.put(entry.getKey(), entry.getValue());
+        return true;
+    }
+
+    /**
+     * 不支持数值读取的缓存，通过 get 读取
+     */
+    @Override
+    public long getLong(Object key, long defaultValue) {
+        Cache cache = this.cache;
+        if (cache instanceof Numeric) return ((Numeric) cache).getLong(key, defaultValue);
+        Long value = cache.get(key, Long.class);
+        return value == null ? defaultValue : value;
+    }
+
+    /**
+     * 同上
+     */
+    @Override
+    public int getInt(Object key, int defaultValue) {
+        Cache cache = this.cache;
+        if (cache instanceof Numeric) return ((Numeric) cache).getInt(key, defaultValue);
+        Integer value = cache.get(key, Integer.class);
+        return value == null ? defaultValue : value;
+    }
+
+    /**
+     * 同上
+     */
+    @Override
+    public double getDouble(Object key, double defaultValue) {
+        Cache cache = this.cache;
+        if (cache instanceof Numeric) return ((Numeric) cache).getDouble(key, defaultValue);
+        Double value = cache.get(key, Double.class);
+        return value == null ? defaultValue : value;
+    }
+
+    /**
+     * 不支持加载的缓存，缺失时直接加载，不合并
+     */
+    @Override
+    public <T> T get(Object key, Class<T> type, Function<Object, ? extends T> loader) {
+        Cache cache = this.cache;
+        if (cache instanceof Loading) return ((Loading) cache).get(key, type, loader);
+        T value = cache.get(key, type);
+        if (value == null) {
+            value = loader.apply(key);
+            if (value != null) cache.put(key, value);
+        }
+        return value;
+    }
+
     @Override
     public String toString() {
         return this.cache != null ? this.cache.toString() : "NULL";
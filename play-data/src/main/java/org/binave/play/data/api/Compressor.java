@@ -0,0 +1,44 @@
+/*
+ * Copyright (c) 2017 bin jin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.binave.play.data.api;
+
+/**
+ * 压缩算法
+ * 默认提供 deflate，需要 LZ4、Snappy 等时实现此接口
+ *
+ * @author by bin jin on 2017/6/23.
+ * @since 1.8
+ */
+public interface Compressor {
+
+    /**
+     * 写入头部的标识，1 ~ 127，0 表示未压缩
+     * 同一份数据的写入方与读取方需要一致
+     */
+    byte getId();
+
+    /**
+     * @return  压缩后的数据
+     */
+    byte[] compress(byte[] bytes);
+
+    /**
+     * @param originalLength    压缩前的长度
+     */
+    byte[] decompress(byte[] bytes, int offset, int length, int originalLength);
+
+}
@@ -32,6 +32,14 @@ public interface Lock {
      */
     long lock(String key);
 
+    /**
+     * 同时锁多个 key，全部成功或全部失败
+     *
+     * @param keys      锁 key，顺序无关
+     * @return          用于 {@link #unlockAll} 的数值
+     */
+    long lockAll(String... keys);
+
     /**
      * 申请延长锁时间
      */
@@ -43,4 +51,10 @@ public interface Lock {
      */
     void unlock(long stamp);
 
+    /**
+     * 释放 {@link #lockAll} 获得的所有 key
+     * @param stamp     lockAll 输出的数值
+     */
+    void unlockAll(long stamp);
+
 }
@@ -0,0 +1,60 @@
+/*
+ * Copyright (c) 2017 bin jin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.binave.play.data.api;
+
+import redis.clients.jedis.Jedis;
+
+import java.util.function.Function;
+
+/**
+ * redis 连接提供者
+ * 每次调用时借出连接，调用结束后归还，
+ * 所以同一个实例可以被多个线程共享
+ *
+ * @author by bin jin on 2017/6/10.
+ * @since 1.8
+ */
+public interface RedisProvider {
+
+    /**
+     * 地址
+     * 用于分配 pool id
+     */
+    String getUrl();
+
+    /**
+     * 借出连接执行，执行结束后归还
+     * 不要在 action 外部持有连接
+     */
+    <R> R execute(Function<Jedis, R> action);
+
+    /**
+     * 借出的连接数
+     */
+    int getActive();
+
+    /**
+     * 等待借出的平均时间（微秒）
+     */
+    long getMeanBorrowWaitMicros();
+
+    /**
+     * 等待借出的最长时间（微秒）
+     */
+    long getMaxBorrowWaitMicros();
+
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright (c) 2017 bin jin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.binave.play.data.args;
+
+/**
+ * 二级缓存的写入方式
+ *
+ * @author by bin jin on 2017/6/6.
+ * @since 1.8
+ */
+public enum WriteMode {
+
+    /**
+     * 只在读取时填充本地，写入远端后清除本地
+     */
+    READ_THROUGH,
+
+    /**
+     * 同步写入远端，成功后写入本地
+     */
+    WRITE_THROUGH,
+
+    /**
+     * 先写入本地，由后台线程合并后批量写入远端
+     */
+    WRITE_BEHIND
+
+}
@@ -1,18 +1,26 @@
 package org.binave.play.data.cache;
 
-import org.binave.common.util.CharUtil;
 import org.binave.common.util.CodecUtil;
 import org.binave.common.util.DataUtil;
 import org.binave.play.data.Proxy.CacheProxy;
 import org.binave.play.data.api.Cache;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.Iterator;
-import java.util.SortedMap;
-import java.util.TreeMap;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * 基于一致性 hash 的缓存池
+ * 节点分配策略在构造时选择，默认为 ketama hash 环
  *
  * todo 需要进行边界测试
  * @author by bin jin on 2017/5/17.
@@ -22,19 +30,89 @@ public class ConsistentCachePool {
 
     private final static int IMG_COUNT = 160;
 
+    /**
+     * 节点分配策略
+     */
+    public enum Strategy {
+
+        /**
+         * hash 环，每个节点 160 个虚拟节点
+         */
+        KETAMA,
+
+        /**
+         * jump consistent hash，无虚拟节点，适合只追加节点的情况
+         */
+        JUMP,
+
+        /**
+         * 最高随机权重，查找开销随节点数线性增长，适合节点较少的情况
+         */
+        RENDEZVOUS,
+
+        /**
+         * maglev 查找表，查找开销固定，负载最均匀
+         */
+        MAGLEV
+    }
+
     /**
      * hash 方式
      */
     private CodecUtil.ConsistentHash consistentHash;
 
+    private Strategy strategy;
+
     public ConsistentCachePool(CodecUtil.ConsistentHash consistentHash) {
+        this(consistentHash, Strategy.KETAMA);
+    }
+
+    public ConsistentCachePool(CodecUtil.ConsistentHash consistentHash, Strategy strategy) {
+        if (consistentHash == null || strategy == null) throw new IllegalArgumentException();
         this.consistentHash = consistentHash;
+        this.strategy = strategy;
+        this.placement = createPlacement(new CacheProxy[0]);
+    }
+
+    /**
+     * 识别热点 key，热点由本地副本提供读取，减轻所在节点的压力
+     * 其他进程对热点的修改最多延迟 replicaMs 可见
+     *
+     * @param hotTop        最多热点数
+     * @param hotThreshold  每秒查找次数超过此值为热点
+     * @param replicaMs     本地副本的有效时间（毫秒）
+     */
+    public ConsistentCachePool(CodecUtil.ConsistentHash consistentHash, Strategy strategy,
+                               int hotTop, int hotThreshold, long replicaMs) {
+        this(consistentHash, strategy);
+        this.hotKeys = new HotKeys(hotTop, hotThreshold, replicaMs, this::locate);
     }
 
     /**
      * pool
+     * 不可变，修改时整体替换（写时复制），读取无锁
+     */
+    private volatile Placement placement;
+
+    /**
+     * 热点 key，为 null 不识别
+     */
+    private HotKeys hotKeys;
+
+    /**
+     * 批量操作时，并行访问各节点
+     */
+    private static final ExecutorService BATCH_EXECUTOR = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "cache-pool-batch");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * 计算 hash 用的缓冲，避免每次分配
      */
-    private SortedMap<Long, CacheProxy> proxyCachePool;
+    private static final ThreadLocal<byte[]> KEY_BYTES =
+            ThreadLocal.withInitial(() -> new byte[DataUtil.LONG_FACTOR]);
 
     /**
      * 添加节点
@@ -44,128 +122,247 @@ public class ConsistentCachePool {
      * @param override  是否覆盖
      */
     public synchronized void put(boolean override, Cache... caches) {
-        SortedMap<Long, CacheProxy> newCachePool = getProxyCachePool(override);
-        for (Cache cache : caches) {
-            for (int i = 0; i < IMG_COUNT; i++) {
-                byte[] kay = CharUtil.toBytes(cache.getUrl() + "." + i);
-                newCachePool.put(
-                        consistentHash.hash(kay, 0, kay.length),
-                        new CacheProxy(cache)
-                );
-            }
-        }
-        this.proxyCachePool = newCachePool;
+        put(override, Arrays.asList(caches));
     }
 
     /**
      * 同上
      */
     public synchronized void put(boolean override, Collection<Cache> caches) {
-        SortedMap<Long, CacheProxy> newCachePool = getProxyCachePool(override);
+        List<CacheProxy> nodes = getProxyCachePool(override);
         for (Cache cache : caches) {
-            for (int i = 0; i < IMG_COUNT; i++) {
-                byte[] kay = CharUtil.toBytes(cache.getUrl() + "." + i);
-                newCachePool.put(
-                        consistentHash.hash(kay, 0, kay.length),
-                        new CacheProxy(cache)
-                );
-            }
+            // 同一个实体节点的虚拟节点共用一个代理，以便同时失效
+            CacheProxy proxy = new CacheProxy(cache);
+            // 相同地址则替换，保持原有位置
+            int index = nodes.indexOf(proxy);
+            if (index < 0) {
+                nodes.add(proxy);
+            } else nodes.set(index, proxy);
         }
-        this.proxyCachePool = newCachePool;
+        this.placement = createPlacement(nodes.toArray(new CacheProxy[nodes.size()]));
+        if (hotKeys != null) hotKeys.clear();
     }
 
     /**
-     * 拿到一个 SortedMap
+     * 有效的实体节点
+     */
+    public List<Cache> getNodes() {
+        CacheProxy[] proxies = placement.nodes();
+        List<Cache> nodes = new ArrayList<>(proxies.length);
+        for (CacheProxy proxy : proxies) {
+            Cache cache = proxy.getCache();
+            if (cache != null) nodes.add(cache);
+        }
+        return nodes;
+    }
+
+    /**
+     * 拿到实体节点列表
      * @param override 是否包含原有的节点
      */
-    private SortedMap<Long, CacheProxy> getProxyCachePool(boolean override) {
-        SortedMap<Long, CacheProxy> newCachePool = new TreeMap<>();
-        if (!override && this.proxyCachePool != null) {
-            // 如果不是覆盖更新，并且缓存不为 null
-            newCachePool.putAll(this.proxyCachePool);
-            // 清除没用的节点
-            newCachePool.values().removeIf(CacheProxy::isNull);
+    private List<CacheProxy> getProxyCachePool(boolean override) {
+        List<CacheProxy> nodes = new ArrayList<>();
+        if (!override) {
+            // 如果不是覆盖更新，保留原有的有效节点
+            for (CacheProxy proxy : placement.nodes()) {
+                if (!proxy.isNull()) nodes.add(proxy);
+            }
+        }
+        return nodes;
+    }
+
+    private Placement createPlacement(CacheProxy[] nodes) {
+        switch (strategy) {
+            case JUMP:
+                return new JumpPlacement(nodes);
+            case RENDEZVOUS:
+                return new RendezvousPlacement(nodes, consistentHash);
+            case MAGLEV:
+                return new MaglevPlacement(nodes, consistentHash);
+            default:
+                return new KetamaPlacement(nodes, consistentHash, IMG_COUNT);
         }
-        return newCachePool;
     }
 
     /**
      * 从 hash 环中获得链接
+     * 无锁，不分配对象
+     * 热点 key 返回本地副本
      */
     public Cache getPoolCache(long id) {
+        HotKeys hotKeys = this.hotKeys;
+        if (hotKeys != null) {
+            Cache replica = hotKeys.lookup(id);
+            if (replica != null) return replica;
+        }
+        return locate(id);
+    }
+
+    /**
+     * 当前热点，id -> 估算的每秒查找次数，没有开启识别时为空
+     */
+    public Map<Long, Long> getHotKeys() {
+        return hotKeys == null ? Collections.emptyMap() : hotKeys.getHotKeys();
+    }
+
+    /**
+     * 累计晋升为热点的次数
+     */
+    public long getHotKeyPromotions() {
+        return hotKeys == null ? 0 : hotKeys.getPromotions();
+    }
 
-        byte[] keyBytes = new byte[DataUtil.LONG_FACTOR];
+    /**
+     * 本地副本的命中、未命中次数
+     */
+    public long getReplicaHits() {
+        return hotKeys == null ? 0 : hotKeys.getHits();
+    }
 
-        Long key = consistentHash.hash(
-                DataUtil.writeLong(keyBytes, 0, id),
+    /**
+     * 同上
+     */
+    public long getReplicaMisses() {
+        return hotKeys == null ? 0 : hotKeys.getMisses();
+    }
+
+    private CacheProxy locate(long id) {
+
+        long key = consistentHash.hash(
+                DataUtil.writeLong(KEY_BYTES.get(), 0, id),
                 0,
                 DataUtil.LONG_FACTOR
         );
 
-        // 获得 range 区间，左闭右开
-        SortedMap<Long, CacheProxy> tailRemoteCachePool = proxyCachePool.tailMap(key);
+        // 虚拟节点已经失效时会顺延，由 trim 负责清理
+        return placement.locate(key);
+    }
+
+    /**
+     * 批量获取
+     * 按节点分组，每个节点一次批量请求，各节点并行
+     *
+     * @return 与 ids 顺序对应，不存在的为 null
+     */
+    public <T> List<T> getAll(long[] ids, Class<T> type) {
+
+        // 节点 -> 在 ids 中的下标
+        Map<CacheProxy, List<Integer>> groups = new IdentityHashMap<>();
+        for (int i = 0; i < ids.length; i++) {
+            groups.computeIfAbsent(locate(ids[i]), k -> new ArrayList<>()).add(i);
+        }
 
-        // 已经是 hash 环的尾部了
-        if (tailRemoteCachePool.isEmpty()) {
-            CacheProxy trimCache = proxyCachePool.get(proxyCachePool.firstKey());
+        Object[] result = new Object[ids.length];
+        List<CompletableFuture<Void>> futures = new ArrayList<>(groups.size());
+        Map.Entry<CacheProxy, List<Integer>> local = null;
+
+        for (Map.Entry<CacheProxy, List<Integer>> group : groups.entrySet()) {
+            // 最后一组由当前线程执行
+            if (local != null) {
+                Map.Entry<CacheProxy, List<Integer>> entry = local;
+                futures.add(CompletableFuture.runAsync(
+                        () -> getAll(entry.getKey(), entry.getValue(), ids, type, result),
+                        BATCH_EXECUTOR
+                ));
+            }
+            local = group;
+        }
+        if (local != null) getAll(local.getKey(), local.getValue(), ids, type, result);
 
-            // 虚拟节点已经失效
-            if (trimCache.isNull()) {
+        join(futures);
+        return (List<T>) Arrays.asList(result);
+    }
 
-                // 准备使用写时复制清除虚拟节点
-                SortedMap<Long, CacheProxy> newRemoteCachePool = new TreeMap<>(proxyCachePool);
+    private static <T> void getAll(CacheProxy proxy, List<Integer> indexes, long[] ids, Class<T> type, Object[] result) {
+        List<Long> keys = new ArrayList<>(indexes.size());
+        for (int index : indexes) keys.add(ids[index]);
+        List<T> values = proxy.getAll(keys, type);
+        for (int i = 0; i < indexes.size(); i++) result[indexes.get(i)] = values.get(i);
+    }
 
-                // 删除所有空的虚拟节点
-                newRemoteCachePool.values().removeIf(CacheProxy::isNull);
+    /**
+     * 批量放入
+     * 按节点分组，每个节点一次批量请求，各节点并行
+     */
+    public void putAll(Map<Long, ?> map) {
 
-                // 如果都失效了
-                if (newRemoteCachePool.isEmpty()) throw new RuntimeException(
-                        "Cache is empty"
-                );
+        // 批量写入不经过副本，清除本地值
+        HotKeys hotKeys = this.hotKeys;
+        if (hotKeys != null) for (long id : map.keySet()) hotKeys.invalidate(id);
 
-                // 赋值
-                proxyCachePool = newRemoteCachePool;
+        Map<CacheProxy, Map<Long, Object>> groups = new IdentityHashMap<>();
+        for (Map.Entry<Long, ?> entry : map.entrySet()) {
+            groups.computeIfAbsent(locate(entry.getKey()), k -> new HashMap<>())
+                    .put(entry.getKey(), entry.getValue());
+        }
 
-                // 重新拿取，todo 暂时不处理节点继续失效的问题，可以用递归
-                SortedMap<Long, CacheProxy> tailMap = newRemoteCachePool.tailMap(key);
+        List<CompletableFuture<Void>> futures = new ArrayList<>(groups.size());
+        Map.Entry<CacheProxy, Map<Long, Object>> local = null;
 
-                return tailMap.get(tailMap.firstKey());
+        for (Map.Entry<CacheProxy, Map<Long, Object>> group : groups.entrySet()) {
+            if (local != null) {
+                Map.Entry<CacheProxy, Map<Long, Object>> entry = local;
+                futures.add(CompletableFuture.runAsync(
+                        () -> entry.getKey().putAll(entry.getValue()),
+                        BATCH_EXECUTOR
+                ));
+            }
+            local = group;
+        }
+        if (local != null) local.getKey().putAll(local.getValue());
 
-            } else return trimCache;
+        join(futures);
+    }
 
-            // 找到第一个匹配的 key
-        } else return tailRemoteCachePool.get(tailRemoteCachePool.firstKey());
+    // 等待全部完成，抛出第一个异常
+    private static void join(List<CompletableFuture<Void>> futures) {
+        RuntimeException exception = null;
+        for (CompletableFuture<Void> future : futures) {
+            try {
+                future.join();
+            } catch (CompletionException e) {
+                if (exception == null) exception = e.getCause() instanceof RuntimeException ?
+                        (RuntimeException) e.getCause() : e;
+            }
+        }
+        if (exception != null) throw exception;
     }
 
     /**
      * 进行 trim
      */
-    public void trim(int live) {
+    public synchronized void trim(int live) {
 
-        SortedMap<Long, CacheProxy> newRemoteCachePool = new TreeMap<>(proxyCachePool);
+        CacheProxy[] proxies = placement.nodes();
+        List<CacheProxy> nodes = new ArrayList<>();
 
-        Iterator<CacheProxy> proxyIterator = newRemoteCachePool.values().iterator();
-
-        while (proxyIterator.hasNext()) {
-            CacheProxy proxy = proxyIterator.next();
-            if (proxy.isNull()) {
-                proxyIterator.remove(); // 干掉无效节点 todo 可能需要考虑重试回复问题
-            } else proxy.trim(live); // 进行整理
+        for (CacheProxy proxy : proxies) {
+            if (proxy.isNull()) continue; // 干掉无效节点 todo 可能需要考虑重试回复问题
+            proxy.trim(live); // 进行整理
+            nodes.add(proxy);
         }
 
-        // 赋值
-        proxyCachePool = newRemoteCachePool;
+        // 有节点失效才重建
+        if (nodes.size() != proxies.length) {
+            this.placement = createPlacement(nodes.toArray(new CacheProxy[nodes.size()]));
+            if (hotKeys != null) hotKeys.clear();
+        }
 
     }
 
     @Override
     public String toString() {
         return "ConsistentCachePool{" +
-                "proxyCachePool=" + proxyCachePool +
+                "strategy=" + strategy +
+                ", proxyCachePool=" + placement +
+                ", hotKeys=" + hotKeys +
                 '}';
     }
 
+    /**
+     * 分配单元数量，ketama 为虚拟节点数
+     */
     public int size() {
-        return proxyCachePool != null ? proxyCachePool.size() : 0;
+        return placement.size();
     }
 }
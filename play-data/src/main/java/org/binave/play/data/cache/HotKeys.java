@@ -0,0 +1,326 @@
+/*
+ * Copyright (c) 2017 bin jin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.binave.play.data.cache;
+
+import org.binave.play.data.Proxy.CacheProxy;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongFunction;
+
+/**
+ * 热点 key 识别
+ * 对查找采样，用 Count-Min Sketch 估算次数，保留估算值最大的候选（top-K）。
+ * 每个窗口结束时，超过阈值的候选晋升为热点，下一个窗口内由本地副本提供读取。
+ *
+ * 采样写入有损的缓冲，由拿到锁的线程批量统计，查找路径上不等待锁、不分配对象。
+ * 候选保存在按估算值排列的小顶堆中。
+ *
+ * @author by bin jin on 2017/6/26.
+ * @since 1.8
+ */
+class HotKeys {
+
+    private final static int SAMPLE = 8; // 每 8 次查找采样 1 次
+    private final static long WINDOW_MS = 1000; // 统计窗口
+    private final static int DEPTH = 4;
+    private final static int WIDTH = 1 << 12;
+    private final static long[] SEED = {
+            0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L
+    };
+
+    private final static int BUFFER_SIZE = 128; // 采样缓冲，2 的幂
+    private final static int BUFFER_MASK = BUFFER_SIZE - 1;
+    private final static int DRAIN_THRESHOLD = BUFFER_SIZE / 2;
+    private final static long EMPTY = Long.MIN_VALUE; // 缓冲中的空位，此 id 不统计
+
+    private int top;
+    private int threshold; // 每秒查找次数
+    private long replicaMs;
+    private LongFunction<CacheProxy> locate; // 热点所在的节点
+
+    // 采样先写入缓冲（有损，覆盖未处理的），由拿到锁的线程批量处理，查找路径上不等待锁
+    private final AtomicLongArray buffer = new AtomicLongArray(BUFFER_SIZE);
+    private final AtomicLong bufferCounter = new AtomicLong();
+    private final ReentrantLock lock = new ReentrantLock();
+
+    // 以下在锁内使用
+    private final int[] sketch = new int[DEPTH * WIDTH];
+    // 候选，按估算值的小顶堆，容量为热点数的两倍
+    private final long[] heapIds;
+    private final int[] heapCounts;
+    private int heapSize;
+    private long windowEnd = System.currentTimeMillis() + WINDOW_MS;
+
+    /**
+     * 热点快照，不可变，整体替换
+     */
+    private volatile Snapshot snapshot = new Snapshot(new long[0], new ReplicaCache[0], new long[0]);
+
+    private final LongAdder promotions = new LongAdder();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * @param top           最多热点数
+     * @param threshold     每秒查找次数超过此值为热点
+     * @param replicaMs     本地副本的有效时间，其他进程的修改最多延迟这么久可见
+     */
+    HotKeys(int top, int threshold, long replicaMs, LongFunction<CacheProxy> locate) {
+        if (top <= 0 || threshold <= 0 || replicaMs <= 0 || locate == null) throw new IllegalArgumentException();
+        this.top = top;
+        this.threshold = threshold;
+        this.replicaMs = replicaMs;
+        this.locate = locate;
+        this.heapIds = new long[top * 2];
+        this.heapCounts = new int[top * 2];
+        for (int i = 0; i < BUFFER_SIZE; i++) buffer.set(i, EMPTY);
+    }
+
+    /**
+     * 记录一次查找
+     *
+     * @return          热点的副本，不是热点或所在节点已失效返回 null（由调用方重新定位）
+     */
+    ReplicaCache lookup(long id) {
+        if (id != EMPTY && ThreadLocalRandom.current().nextInt(SAMPLE) == 0) record(id);
+        Snapshot snapshot = this.snapshot;
+        int index = Arrays.binarySearch(snapshot.ids, id);
+        if (index < 0) return null;
+        ReplicaCache replica = snapshot.replicas[index];
+        return replica.isNull() ? null : replica;
+    }
+
+    /**
+     * 本进程写入后清除副本
+     */
+    void invalidate(long id) {
+        Snapshot snapshot = this.snapshot;
+        int index = Arrays.binarySearch(snapshot.ids, id);
+        if (index >= 0) snapshot.replicas[index].invalidate();
+    }
+
+    /**
+     * 节点变化后清空热点，重新统计
+     */
+    void clear() {
+        lock.lock();
+        try {
+            this.snapshot = new Snapshot(new long[0], new ReplicaCache[0], new long[0]);
+            for (int i = 0; i < BUFFER_SIZE; i++) buffer.set(i, EMPTY);
+            Arrays.fill(sketch, 0);
+            heapSize = 0;
+            windowEnd = System.currentTimeMillis() + WINDOW_MS;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 写入缓冲，积累到一半时尝试处理，锁被占用则跳过
+    private void record(long id) {
+        long count = bufferCounter.getAndIncrement();
+        buffer.lazySet((int) count & BUFFER_MASK, id);
+        if ((count & (DRAIN_THRESHOLD - 1)) == DRAIN_THRESHOLD - 1 && lock.tryLock()) {
+            try {
+                drain();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    // 需要持有锁
+    private void drain() {
+        long now = System.currentTimeMillis();
+        if (now >= windowEnd) {
+            promote(now - windowEnd + WINDOW_MS);
+            windowEnd = now + WINDOW_MS;
+        }
+        for (int i = 0; i < BUFFER_SIZE; i++) {
+            long id = buffer.getAndSet(i, EMPTY);
+            if (id != EMPTY) count(id);
+        }
+    }
+
+    private void count(long id) {
+        int estimate = Integer.MAX_VALUE;
+        for (int i = 0; i < DEPTH; i++) {
+            int index = i * WIDTH + indexOf(id, i);
+            if (sketch[index] < Integer.MAX_VALUE) sketch[index]++;
+            estimate = Math.min(estimate, sketch[index]);
+        }
+
+        // 堆满且不超过最小值的不是候选，大多数查找在这里返回
+        boolean full = heapSize == heapIds.length;
+        if (full && estimate <= heapCounts[0]) return;
+
+        for (int i = 0; i < heapSize; i++) {
+            if (heapIds[i] == id) {
+                // 估算值只增不减，向下调整
+                heapCounts[i] = estimate;
+                siftDown(i);
+                return;
+            }
+        }
+
+        if (full) {
+            // 替换最小的候选
+            heapIds[0] = id;
+            heapCounts[0] = estimate;
+            siftDown(0);
+        } else {
+            heapIds[heapSize] = id;
+            heapCounts[heapSize] = estimate;
+            siftUp(heapSize++);
+        }
+    }
+
+    private void siftUp(int i) {
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (heapCounts[parent] <= heapCounts[i]) return;
+            swap(i, parent);
+            i = parent;
+        }
+    }
+
+    private void siftDown(int i) {
+        while (true) {
+            int left = i * 2 + 1;
+            if (left >= heapSize) return;
+            int min = left + 1 < heapSize && heapCounts[left + 1] < heapCounts[left] ? left + 1 : left;
+            if (heapCounts[i] <= heapCounts[min]) return;
+            swap(i, min);
+            i = min;
+        }
+    }
+
+    private void swap(int i, int j) {
+        long id = heapIds[i];
+        heapIds[i] = heapIds[j];
+        heapIds[j] = id;
+        int count = heapCounts[i];
+        heapCounts[i] = heapCounts[j];
+        heapCounts[j] = count;
+    }
+
+    // 窗口结束，重建热点，清空统计
+    private void promote(long elapsedMs) {
+        // 按估算值从大到小
+        Integer[] order = new Integer[heapSize];
+        for (int i = 0; i < heapSize; i++) order[i] = i;
+        Arrays.sort(order, (a, b) -> Integer.compare(heapCounts[b], heapCounts[a]));
+
+        Snapshot old = this.snapshot;
+        Map<Long, Long> rates = new HashMap<>();
+        for (int i : order) {
+            if (rates.size() >= top) break;
+            long rate = heapCounts[i] * SAMPLE * 1000L / Math.max(1, elapsedMs);
+            if (rate >= threshold) rates.put(heapIds[i], rate);
+        }
+
+        long[] ids = new long[rates.size()];
+        int n = 0;
+        for (long id : rates.keySet()) ids[n++] = id;
+        Arrays.sort(ids);
+
+        ReplicaCache[] replicas = new ReplicaCache[ids.length];
+        long[] counts = new long[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            counts[i] = rates.get(ids[i]);
+            CacheProxy proxy = locate.apply(ids[i]);
+            int index = Arrays.binarySearch(old.ids, ids[i]);
+            if (index < 0) promotions.increment();
+            // 仍是热点且节点没有变化的保留副本
+            replicas[i] = index >= 0 && old.replicas[index].getCache() == proxy ?
+                    old.replicas[index] : new ReplicaCache(proxy, replicaMs, hits, misses);
+        }
+        this.snapshot = new Snapshot(ids, replicas, counts);
+
+        Arrays.fill(sketch, 0);
+        heapSize = 0;
+    }
+
+    private static int indexOf(long id, int i) {
+        long hash = (id + SEED[i]) * SEED[i];
+        hash += hash >>> 32;
+        return ((int) hash) & (WIDTH - 1);
+    }
+
+    /**
+     * 当前热点，id -> 估算的每秒查找次数
+     */
+    Map<Long, Long> getHotKeys() {
+        Snapshot snapshot = this.snapshot;
+        Map<Long, Long> result = new LinkedHashMap<>();
+        for (int i = 0; i < snapshot.ids.length; i++) result.put(snapshot.ids[i], snapshot.rates[i]);
+        return result;
+    }
+
+    /**
+     * 累计晋升次数
+     */
+    long getPromotions() {
+        return promotions.sum();
+    }
+
+    /**
+     * 副本命中次数
+     */
+    long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * 副本未命中（读取远端）次数
+     */
+    long getMisses() {
+        return misses.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "HotKeys{" +
+                "top=" + top +
+                ", threshold=" + threshold +
+                ", replicaMs=" + replicaMs +
+                ", hotKeys=" + getHotKeys() +
+                ", promotions=" + getPromotions() +
+                ", hits=" + getHits() +
+                ", misses=" + getMisses() +
+                '}';
+    }
+
+    private static class Snapshot {
+        final long[] ids; // 有序
+        final ReplicaCache[] replicas;
+        final long[] rates;
+
+        Snapshot(long[] ids, ReplicaCache[] replicas, long[] rates) {
+            this.ids = ids;
+            this.replicas = replicas;
+            this.rates = rates;
+        }
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 2017 bin jin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.binave.play.data.cache;
+
+import org.binave.play.data.Proxy.CacheProxy;
+
+import java.util.Arrays;
+
+/**
+ * jump consistent hash（Lamping & Veach）
+ * 无需虚拟节点，内存占用只有节点数组。
+ *
+ * 只在尾部追加节点时迁移量最小，中间节点失效时顺延到下一个节点，
+ * 被 trim 移除后，其后的节点会整体迁移
+ *
+ * @author by bin jin on 2017/6/8.
+ * @since 1.8
+ */
+class JumpPlacement implements Placement {
+
+    private final CacheProxy[] nodes;
+
+    JumpPlacement(CacheProxy[] nodes) {
+        this.nodes = nodes;
+    }
+
+    @Override
+    public CacheProxy locate(long hash) {
+        int length = nodes.length;
+        if (length == 0) throw new RuntimeException("Cache is empty");
+
+        int index = jump(Placement.mix(hash), length);
+        for (int n = 0; n < length; n++) {
+            CacheProxy proxy = nodes[index];
+            if (!proxy.isNull()) return proxy;
+            if (++index == length) index = 0;
+        }
+
+        // 如果都失效了
+        throw new RuntimeException("Cache is empty");
+    }
+
+    static int jump(long key, int buckets) {
+        long b = -1, j = 0;
+        while (j < buckets) {
+            b = j;
+            key = key * 2862933555777941757L + 1;
+            j = (long) ((b + 1) * ((double) (1L << 31) / (double) ((key >>> 33) + 1)));
+        }
+        return (int) b;
+    }
+
+    @Override
+    public CacheProxy[] nodes() {
+        return nodes;
+    }
+
+    @Override
+    public int size() {
+        return nodes.length;
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString(nodes);
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2017 bin jin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.binave.play.data.cache;
+
+import org.binave.common.util.CharUtil;
+import org.binave.common.util.CodecUtil;
+import org.binave.play.data.Proxy.CacheProxy;
+
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * ketama 方式的 hash 环
+ * 每个实体节点对应多个虚拟节点，有序的 hash 数组与节点数组一一对应
+ *
+ * @author by bin jin on 2017/6/8.
+ * @since 1.8
+ */
+class KetamaPlacement implements Placement {
+
+    private final CacheProxy[] proxies;
+    private final long[] hashes;
+    private final CacheProxy[] nodes;
+
+    KetamaPlacement(CacheProxy[] proxies, CodecUtil.ConsistentHash consistentHash, int imgCount) {
+        this.proxies = proxies;
+
+        SortedMap<Long, CacheProxy> pool = new TreeMap<>();
+        for (CacheProxy proxy : proxies) {
+            for (int i = 0; i < imgCount; i++) {
+                byte[] kay = CharUtil.toBytes(proxy.getUrl() + "." + i);
+                pool.put(consistentHash.hash(kay, 0, kay.length), proxy);
+            }
+        }
+
+        this.hashes = new long[pool.size()];
+        this.nodes = new CacheProxy[pool.size()];
+        int i = 0;
+        for (Map.Entry<Long, CacheProxy> entry : pool.entrySet()) {
+            hashes[i] = entry.getKey();
+            nodes[i++] = entry.getValue();
+        }
+    }
+
+    @Override
+    public CacheProxy locate(long hash) {
+        int length = hashes.length;
+        if (length == 0) throw new RuntimeException("Cache is empty");
+
+        // 第一个 >= hash 的位置，到尾部则回到环首
+        int index = ceiling(hash);
+
+        // 虚拟节点已经失效，顺时针找下一个
+        for (int n = 0; n < length; n++) {
+            CacheProxy proxy = nodes[index];
+            if (!proxy.isNull()) return proxy;
+            if (++index == length) index = 0;
+        }
+
+        // 如果都失效了
+        throw new RuntimeException("Cache is empty");
+    }
+
+    /**
+     * 二分查找第一个 >= key 的位置，没有则为 0
+     */
+    private int ceiling(long key) {
+        int low = 0, high = hashes.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (hashes[mid] < key) low = mid + 1;
+            else high = mid;
+        }
+        return low == hashes.length ? 0 : low;
+    }
+
+    @Override
+    public CacheProxy[] nodes() {
+        return proxies;
+    }
+
+    @Override
+    public int size() {
+        return hashes.length;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("{");
+        for (int i = 0; i < hashes.length; i++) {
+            if (i > 0) builder.append(", ");
+            builder.append(hashes[i]).append('=').append(nodes[i]);
+        }
+        return builder.append('}').toString();
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2017 bin jin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.binave.play.data.cache;
+
+import org.binave.common.util.CharUtil;
+import org.binave.common.util.CodecUtil;
+import org.binave.play.data.Proxy.CacheProxy;
+
+import java.util.Arrays;
+
+/**
+ * maglev hash
+ * 预先生成固定大小的查找表，查找为一次取模和一次数组访问，
+ * 各节点分到的槽位数几乎相同，增删节点时少量数据会迁移到非相关节点
+ *
+ * @author by bin jin on 2017/6/8.
+ * @since 1.8
+ */
+class MaglevPlacement implements Placement {
+
+    // 查找表大小，需要为质数，且远大于节点数
+    private static final int[] TABLE_SIZES = {65537, 655373};
+
+    private final CacheProxy[] nodes;
+    private final int[] table;
+
+    MaglevPlacement(CacheProxy[] nodes, CodecUtil.ConsistentHash consistentHash) {
+        this.nodes = nodes;
+        this.table = nodes.length == 0 ? new int[0] : populate(nodes, consistentHash);
+    }
+
+    private static int[] populate(CacheProxy[] nodes, CodecUtil.ConsistentHash consistentHash) {
+        int n = nodes.length;
+        int size = TABLE_SIZES[TABLE_SIZES.length - 1];
+        for (int tableSize : TABLE_SIZES) {
+            if (tableSize >= n * 100) {
+                size = tableSize;
+                break;
+            }
+        }
+
+        // 每个节点的排列：(offset + j * skip) mod size
+        long[] offset = new long[n];
+        long[] skip = new long[n];
+        for (int i = 0; i < n; i++) {
+            byte[] kay = CharUtil.toBytes(nodes[i].getUrl());
+            long h1 = Placement.mix(consistentHash.hash(kay, 0, kay.length));
+            long h2 = Placement.mix(h1 ^ 0x9e3779b97f4a7c15L);
+            offset[i] = Long.remainderUnsigned(h1, size);
+            skip[i] = Long.remainderUnsigned(h2, size - 1) + 1;
+        }
+
+        int[] table = new int[size];
+        Arrays.fill(table, -1);
+        long[] next = new long[n];
+
+        // 各节点轮流按自己的排列认领空位
+        int filled = 0;
+        while (true) {
+            for (int i = 0; i < n; i++) {
+                int c = (int) ((offset[i] + next[i] * skip[i]) % size);
+                while (table[c] >= 0) {
+                    next[i]++;
+                    c = (int) ((offset[i] + next[i] * skip[i]) % size);
+                }
+                table[c] = i;
+                next[i]++;
+                if (++filled == size) return table;
+            }
+        }
+    }
+
+    @Override
+    public CacheProxy locate(long hash) {
+        int length = table.length;
+        if (length == 0) throw new RuntimeException("Cache is empty");
+
+        int index = (int) Long.remainderUnsigned(Placement.mix(hash), length);
+
+        // 节点失效，顺延到下一个槽位，失效节点的数据会分散到其他节点
+        for (int n = 0; n < length; n++) {
+            CacheProxy proxy = nodes[table[index]];
+            if (!proxy.isNull()) return proxy;
+            if (++index == length) index = 0;
+        }
+
+        // 如果都失效了
+        throw new RuntimeException("Cache is empty");
+    }
+
+    @Override
+    public CacheProxy[] nodes() {
+        return nodes;
+    }
+
+    @Override
+    public int size() {
+        return table.length;
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString(nodes);
+    }
+}
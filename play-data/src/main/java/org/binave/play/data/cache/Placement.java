@@ -0,0 +1,58 @@
+/*
+ * Copyright (c) 2017 bin jin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.binave.play.data.cache;
+
+import org.binave.play.data.Proxy.CacheProxy;
+
+/**
+ * 节点分配策略
+ * 实现需要不可变，修改时整体替换，以保证读取无锁
+ *
+ * @author by bin jin on 2017/6/8.
+ * @since 1.8
+ */
+interface Placement {
+
+    /**
+     * 根据 key 的 hash 找到节点
+     * 节点失效时，需要找到下一个有效节点
+     */
+    CacheProxy locate(long hash);
+
+    /**
+     * 实体节点，不重复
+     */
+    CacheProxy[] nodes();
+
+    /**
+     * 分配单元数量
+     */
+    int size();
+
+    /**
+     * 打散 hash，部分 hash 方式只有低 32 位有效
+     */
+    static long mix(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) 2017 bin jin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.binave.play.data.cache;
+
+import org.binave.common.util.CharUtil;
+import org.binave.common.util.CodecUtil;
+import org.binave.play.data.Proxy.CacheProxy;
+
+import java.util.Arrays;
+
+/**
+ * rendezvous hash（HRW，最高随机权重）
+ * 对每个节点计算权重，取最大者，节点失效时自然落到权重次高的节点。
+ *
+ * 增删节点只迁移相关节点上的数据，查找开销随节点数线性增长，适合节点较少的情况
+ *
+ * @author by bin jin on 2017/6/8.
+ * @since 1.8
+ */
+class RendezvousPlacement implements Placement {
+
+    private final CacheProxy[] nodes;
+    private final long[] seeds;
+
+    RendezvousPlacement(CacheProxy[] nodes, CodecUtil.ConsistentHash consistentHash) {
+        this.nodes = nodes;
+        this.seeds = new long[nodes.length];
+        for (int i = 0; i < nodes.length; i++) {
+            byte[] kay = CharUtil.toBytes(nodes[i].getUrl());
+            seeds[i] = Placement.mix(consistentHash.hash(kay, 0, kay.length));
+        }
+    }
+
+    @Override
+    public CacheProxy locate(long hash) {
+        int best = -1;
+        long bestWeight = 0;
+        for (int i = 0; i < nodes.length; i++) {
+            if (nodes[i].isNull()) continue;
+            long weight = Placement.mix(hash ^ seeds[i]);
+            if (best < 0 || Long.compareUnsigned(weight, bestWeight) > 0) {
+                best = i;
+                bestWeight = weight;
+            }
+        }
+
+        // 如果都失效了
+        if (best < 0) throw new RuntimeException("Cache is empty");
+        return nodes[best];
+    }
+
+    @Override
+    public CacheProxy[] nodes() {
+        return nodes;
+    }
+
+    @Override
+    public int size() {
+        return nodes.length;
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString(nodes);
+    }
+}
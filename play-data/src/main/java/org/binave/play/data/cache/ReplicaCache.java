@@ -0,0 +1,187 @@
+/*
+ * Copyright (c) 2017 bin jin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.binave.play.data.cache;
+
+import org.binave.play.data.Proxy.CacheProxy;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * 热点 key 的本地副本
+ * 读取在有效期内使用本地值，写入直接访问节点并清除本地值。
+ * 其他进程的修改最多延迟一个有效期可见。
+ * 本地值在线程之间共享，取出后不应修改。
+ *
+ * @author by bin jin on 2017/6/26.
+ * @since 1.8
+ */
+class ReplicaCache extends CacheProxy {
+
+    private final static int MAXIMUM = 64; // 每个热点 id 的副本保存的 key 数（同一 id 下不同的 key、类型）
+
+    private CacheProxy proxy; // 热点所在的节点
+    private long replicaMs;
+    private LongAdder hits;
+    private LongAdder misses;
+
+    private final Map<Object, Replica> replicas = new ConcurrentHashMap<>();
+
+    ReplicaCache(CacheProxy proxy, long replicaMs, LongAdder hits, LongAdder misses) {
+        super(proxy);
+        this.proxy = proxy;
+        this.replicaMs = replicaMs;
+        this.hits = hits;
+        this.misses = misses;
+    }
+
+    /**
+     * 所在节点已失效
+     */
+    @Override
+    public boolean isNull() {
+        return proxy.isNull();
+    }
+
+    @Override
+    public <T> T get(Object key, Class<T> type) {
+        Replica replica = local(key, type);
+        if (replica != null) return (T) replica.value;
+        T value = super.get(key, type);
+        save(key, type, value);
+        return value;
+    }
+
+    /**
+     * 未命中时直接走节点的加载，只访问一次节点
+     */
+    @Override
+    public <T> T get(Object key, Class<T> type, Function<Object, ? extends T> loader) {
+        Replica replica = local(key, type);
+        if (replica != null) return (T) replica.value;
+        T value = super.get(key, type, loader);
+        save(key, type, value);
+        return value;
+    }
+
+    @Override
+    public boolean exist(Object key) {
+        if (local(key, null) != null) return true;
+        return super.exist(key);
+    }
+
+    /**
+     * 有效的本地值，同时记录命中、未命中
+     *
+     * @param type      为 null 不检查类型
+     */
+    private Replica local(Object key, Class<?> type) {
+        Replica replica = replicas.get(key);
+        if (replica != null && (type == null || replica.type == type)
+                && System.currentTimeMillis() < replica.expireAt) {
+            hits.increment();
+            return replica;
+        }
+        misses.increment();
+        return null;
+    }
+
+    @Override
+    public long getLong(Object key, long defaultValue) {
+        Long value = get(key, Long.class);
+        return value == null ? defaultValue : value;
+    }
+
+    @Override
+    public int getInt(Object key, int defaultValue) {
+        Integer value = get(key, Integer.class);
+        return value == null ? defaultValue : value;
+    }
+
+    @Override
+    public double getDouble(Object key, double defaultValue) {
+        Double value = get(key, Double.class);
+        return value == null ? defaultValue : value;
+    }
+
+    @Override
+    public Object put(Object key, Object value) {
+        replicas.remove(key);
+        try {
+            return super.put(key, value);
+        } finally {
+            // 写入期间可能有读取保存了旧值
+            replicas.remove(key);
+        }
+    }
+
+    @Override
+    public Object remove(Object key) {
+        replicas.remove(key);
+        try {
+            return super.remove(key);
+        } finally {
+            replicas.remove(key);
+        }
+    }
+
+    @Override
+    public Object putAll(Map<?, ?> map) {
+        for (Object key : map.keySet()) replicas.remove(key);
+        try {
+            return super.putAll(map);
+        } finally {
+            for (Object key : map.keySet()) replicas.remove(key);
+        }
+    }
+
+    /**
+     * 清除全部本地值
+     */
+    void invalidate() {
+        replicas.clear();
+    }
+
+    // 不存在的不保存
+    private void save(Object key, Class<?> type, Object value) {
+        if (value == null || (replicas.size() >= MAXIMUM && !replicas.containsKey(key))) return;
+        replicas.put(key, new Replica(value, type, System.currentTimeMillis() + replicaMs));
+    }
+
+    private static class Replica {
+        final Object value;
+        final Class<?> type;
+        final long expireAt;
+
+        Replica(Object value, Class<?> type, long expireAt) {
+            this.value = value;
+            this.type = type;
+            this.expireAt = expireAt;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ReplicaCache{" +
+                "cache=" + getCache() +
+                ", replicaMs=" + replicaMs +
+                ", size=" + replicas.size() +
+                '}';
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2017 bin jin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.binave.play.data.cache.factory;
+
+import org.binave.play.data.api.Adder;
+import org.binave.play.data.api.AsyncCache;
+import org.binave.play.data.api.Cache;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+
+/**
+ * 异步缓存实现
+ * jedis 为阻塞调用，在独立的线程池中执行，调用线程（如 netty IO 线程）不会被阻塞，
+ * 线程数应与连接池大小一致
+ *
+ * @author by bin jin on 2017/6/13.
+ * @since 1.8
+ */
+class AsyncCacheImpl implements AsyncCache {
+
+    private Cache cache;
+    private Executor executor;
+
+    AsyncCacheImpl(Cache cache, Executor executor) {
+        if (cache == null || executor == null) throw new IllegalArgumentException();
+        this.cache = cache;
+        this.executor = executor;
+    }
+
+    @Override
+    public String getUrl() {
+        return cache.getUrl();
+    }
+
+    /**
+     * 合并写入的缓存，在提交后完成
+     */
+    @Override
+    public CompletionStage<Object> put(Object key, Object value) {
+        return CompletableFuture.supplyAsync(() -> cache.put(key, value), executor)
+                .thenCompose(AsyncCacheImpl::flatten);
+    }
+
+    /**
+     * 同上
+     */
+    @Override
+    public CompletionStage<Object> remove(Object key) {
+        return CompletableFuture.supplyAsync(() -> cache.remove(key), executor)
+                .thenCompose(AsyncCacheImpl::flatten);
+    }
+
+    @Override
+    public <T> CompletionStage<T> get(Object key, Class<T> type) {
+        return CompletableFuture.supplyAsync(() -> cache.get(key, type), executor);
+    }
+
+    @Override
+    public CompletionStage<Boolean> exist(Object key) {
+        return CompletableFuture.supplyAsync(() -> cache.exist(key), executor);
+    }
+
+    /**
+     * 缓存不支持 {@link Adder} 时，以 {@link UnsupportedOperationException} 完成
+     */
+    @Override
+    public CompletionStage<Long> adder(Object key, long value) {
+        if (!(cache instanceof Adder)) {
+            CompletableFuture<Long> future = new CompletableFuture<>();
+            future.completeExceptionally(new UnsupportedOperationException());
+            return future;
+        }
+        return CompletableFuture.supplyAsync(() -> ((Adder) cache).adder(key, value), executor);
+    }
+
+    private static CompletionStage<Object> flatten(Object result) {
+        if (result instanceof CompletionStage) return (CompletionStage<Object>) result;
+        return CompletableFuture.completedFuture(result);
+    }
+
+    @Override
+    public String toString() {
+        return "AsyncCacheImpl{" +
+                "cache=" + cache +
+                '}';
+    }
+}
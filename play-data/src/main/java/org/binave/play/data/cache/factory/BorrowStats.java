@@ -0,0 +1,57 @@
+/*
+ * Copyright (c) 2017 bin jin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.binave.play.data.cache.factory;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 借出连接的等待时间统计
+ *
+ * @author by bin jin on 2017/6/10.
+ * @since 1.8
+ */
+class BorrowStats {
+
+    private final LongAdder count = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    void record(long waitNanos) {
+        count.increment();
+        totalNanos.add(waitNanos);
+        maxNanos.accumulateAndGet(waitNanos, Math::max);
+    }
+
+    long getMeanMicros() {
+        long n = count.sum();
+        return n == 0 ? 0 : totalNanos.sum() / n / 1000;
+    }
+
+    long getMaxMicros() {
+        return maxNanos.get() / 1000;
+    }
+
+    @Override
+    public String toString() {
+        return "BorrowStats{" +
+                "count=" + count.sum() +
+                ", meanMicros=" + getMeanMicros() +
+                ", maxMicros=" + getMaxMicros() +
+                '}';
+    }
+}
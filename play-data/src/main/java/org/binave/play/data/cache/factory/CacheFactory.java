@@ -16,10 +16,30 @@
 
 package org.binave.play.data.cache.factory;
 
+import org.binave.play.data.api.AsyncCache;
 import org.binave.play.data.api.Cache;
+import org.binave.play.data.api.Compressor;
+import org.binave.play.data.api.Lock;
+import org.binave.play.data.api.Loading;
+import org.binave.play.data.api.LongCache;
+import org.binave.play.data.api.RedisProvider;
+import org.binave.play.data.args.WriteMode;
+import org.binave.play.data.cache.ConsistentCachePool;
 import org.binave.common.serialize.Codec;
 import org.binave.common.util.FutureTime;
 import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPoolConfig;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.zip.Deflater;
 
 /**
  * 缓存类工厂
@@ -29,6 +49,37 @@ import redis.clients.jedis.Jedis;
  */
 public class CacheFactory {
 
+    /**
+     * 连接池
+     * 同一个缓存实例可以被多个线程同时使用
+     *
+     * @param database      库
+     * @param password      密码，没有为 null
+     * @param maxTotal      最大连接数
+     * @param maxIdle       最大空闲连接数
+     * @param maxWaitMillis 借出连接的最长等待时间
+     * @param timeout       读写超时（毫秒）
+     */
+    public static RedisProvider createRedisProvider(String host, int port, int database, String password,
+                                                    int maxTotal, int maxIdle, long maxWaitMillis, int timeout) {
+        JedisPoolConfig config = new JedisPoolConfig();
+        config.setMaxTotal(maxTotal);
+        config.setMaxIdle(maxIdle);
+        config.setMaxWaitMillis(maxWaitMillis);
+        config.setBlockWhenExhausted(true);
+        return new JedisPoolProviderImpl(
+                host, port, database,
+                new JedisPool(config, host, port, timeout, password, database)
+        );
+    }
+
+    /**
+     * 单连接，所有调用排队执行
+     */
+    public static RedisProvider createRedisProvider(Jedis redis) {
+        return new SingleJedisProviderImpl(redis);
+    }
+
     /**
      * 有界缓存
      * 仅仅保证最活跃的缓存
@@ -38,8 +89,26 @@ public class CacheFactory {
      * @param index         过期时刻
      * @param codec         序列化工具
      */
+    public static Cache createBoundedCache(String key, RedisProvider redis, FutureTime futureTime, int index, Codec codec) {
+        return new SortedCacheImpl(key, redis, futureTime, index, codec);
+    }
+
+    /**
+     * 同上，读取时按条件刷新活跃度（近似 LRU），减少读取带来的写入
+     *
+     * @param touchMs           距上次刷新超过此毫秒数才刷新，0 为每次刷新
+     * @param touchProbability  刷新的概率，1 为每次刷新
+     */
+    public static Cache createBoundedCache(String key, RedisProvider redis, FutureTime futureTime, int index, Codec codec,
+                                           long touchMs, double touchProbability) {
+        return new SortedCacheImpl(key, redis, futureTime, index, codec, touchMs, touchProbability);
+    }
+
+    /**
+     * 同上，单连接
+     */
     public static Cache createBoundedCache(String key, Jedis redis, FutureTime futureTime, int index, Codec codec) {
-        return new SortedCacheImpl(key,  redis, futureTime, index, codec);
+        return createBoundedCache(key, createRedisProvider(redis), futureTime, index, codec);
     }
 
     /**
@@ -49,10 +118,48 @@ public class CacheFactory {
      * @param index         过期时刻
      * @param codec         序列化工具
      */
-    public static Cache createCache(Jedis redis, FutureTime futureTime, int index, Codec codec) {
+    public static Cache createCache(RedisProvider redis, FutureTime futureTime, int index, Codec codec) {
         return new CycleCacheImpl(redis, futureTime, index, codec);
     }
 
+    /**
+     * 一维缓存，合并写入
+     * put、remove 返回 {@link java.util.concurrent.CompletableFuture}，提交后完成
+     * 返回的缓存实现 {@link Closeable}，不再使用时关闭，以提交剩余的写入并停止提交线程
+     *
+     * @param flushMs       提交间隔（毫秒）
+     * @param flushCount    积累到此数量立即提交
+     */
+    public static Cache createCache(RedisProvider redis, FutureTime futureTime, int index, Codec codec,
+                                    long flushMs, int flushCount) {
+        return new CycleCacheImpl(redis, futureTime, index, codec, new WriteCoalescer(redis, flushMs, flushCount));
+    }
+
+    /**
+     * 同上，单连接
+     */
+    public static Cache createCache(Jedis redis, FutureTime futureTime, int index, Codec codec) {
+        return createCache(createRedisProvider(redis), futureTime, index, codec);
+    }
+
+    /**
+     * 一维缓存，过期时间抖动
+     * 每个 key 在周期结束后再推迟 [0, jitter) 秒过期，避免同时过期，推迟期间读取不到上周期的数据
+     *
+     * @param jitter        抖动（秒），应远小于周期
+     */
+    public static Cache createCache(RedisProvider redis, FutureTime futureTime, int index, Codec codec, int jitter) {
+        return new CycleCacheImpl(redis, futureTime, index, codec, null, jitter);
+    }
+
+    /**
+     * 同上，合并写入
+     */
+    public static Cache createCache(RedisProvider redis, FutureTime futureTime, int index, Codec codec,
+                                    long flushMs, int flushCount, int jitter) {
+        return new CycleCacheImpl(redis, futureTime, index, codec, new WriteCoalescer(redis, flushMs, flushCount), jitter);
+    }
+
     /**
      * 二维缓存
      *
@@ -61,10 +168,215 @@ public class CacheFactory {
      * @param index         过期时刻
      * @param codec         序列化工具
      */
-    public static Cache createCache(String key, Jedis redis, FutureTime futureTime, int index, Codec codec) {
+    public static Cache createCache(String key, RedisProvider redis, FutureTime futureTime, int index, Codec codec) {
         return new CycleFieldCacheImpl(key, redis, futureTime, index, codec);
     }
 
+    /**
+     * 二维缓存，合并写入
+     * put、remove 返回 {@link java.util.concurrent.CompletableFuture}，提交后完成
+     * 返回的缓存实现 {@link Closeable}，不再使用时关闭，以提交剩余的写入并停止提交线程
+     *
+     * @param flushMs       提交间隔（毫秒）
+     * @param flushCount    积累到此数量立即提交
+     */
+    public static Cache createCache(String key, RedisProvider redis, FutureTime futureTime, int index, Codec codec,
+                                    long flushMs, int flushCount) {
+        return new CycleFieldCacheImpl(key, redis, futureTime, index, codec, new WriteCoalescer(redis, flushMs, flushCount));
+    }
+
+    /**
+     * 同上，单连接
+     */
+    public static Cache createCache(String key, Jedis redis, FutureTime futureTime, int index, Codec codec) {
+        return createCache(key, createRedisProvider(redis), futureTime, index, codec);
+    }
+
+    /**
+     * 二维缓存，过期时间抖动
+     * 主键在周期结束后再推迟 [0, jitter) 秒过期（按主键固定），推迟期间读取不到上周期的数据
+     *
+     * @param jitter        抖动（秒），应远小于周期
+     */
+    public static Cache createCache(String key, RedisProvider redis, FutureTime futureTime, int index, Codec codec,
+                                    int jitter) {
+        return new CycleFieldCacheImpl(key, redis, futureTime, index, codec, null, jitter);
+    }
+
+    /**
+     * 同上，合并写入
+     */
+    public static Cache createCache(String key, RedisProvider redis, FutureTime futureTime, int index, Codec codec,
+                                    long flushMs, int flushCount, int jitter) {
+        return new CycleFieldCacheImpl(key, redis, futureTime, index, codec,
+                new WriteCoalescer(redis, flushMs, flushCount), jitter);
+    }
+
+    /**
+     * 周期预热
+     * 每个周期结束后，把 keys 均匀分散在窗口内加载到缓存，已存在的跳过
+     *
+     * @param futureTime    过期周期，应与缓存一致
+     * @param index         过期时刻
+     * @param window        分散加载的窗口（秒）
+     * @param keys          每个周期需要预热的 key
+     * @param loader        加载数据，返回 null 时不放入
+     * @return              关闭后停止预热
+     */
+    public static Closeable createPrewarmer(Cache cache, FutureTime futureTime, int index, int window,
+                                            Supplier<? extends Collection<?>> keys, Function<Object, ?> loader) {
+        return new CyclePrewarmer(cache, futureTime, index, window, keys, loader);
+    }
+
+    /**
+     * 二级缓存，本地缓存在前，远端缓存在后
+     *
+     * @param name          缓存名，同名缓存之间互相通知失效
+     * @param remote        远端缓存
+     * @param redis         用于发布、订阅失效通知
+     * @param subscribe     是否订阅失效通知，会长期占用一个连接，否则只在周期结束时过期
+     *                      需要使用连接池，单连接抛出 {@link IllegalArgumentException}
+     * @param futureTime    本地过期周期，应与远端一致
+     * @param index         过期时刻
+     * @param mode          写入方式
+     * @param maximum       本地最大保存数
+     */
+    public static Cache createNearCache(String name, Cache remote, RedisProvider redis, boolean subscribe,
+                                        FutureTime futureTime, int index, WriteMode mode, int maximum) {
+        return new NearCacheImpl(name, remote, redis, subscribe, futureTime, index, mode, maximum);
+    }
+
+    /**
+     * 防击穿的缓存，提供 {@link Loading#get(Object, Class, java.util.function.Function)}
+     * 同一个 key 同时缺失时，进程内只加载一次
+     * 不提前刷新，周期结束后的集中加载使用 {@link #createPrewarmer} 分散
+     *
+     * @param cache         被包装的缓存
+     */
+    public static Loading createLoadingCache(Cache cache) {
+        return new LoadingCacheImpl(cache, null, 0);
+    }
+
+    /**
+     * 同上，进程之间通过 redis 租约合并加载
+     *
+     * @param redis         用于租约
+     * @param leaseMs       租约时间，应大于加载时间，超时未加载完成的其他进程会自己加载
+     */
+    public static Loading createLoadingCache(Cache cache, RedisProvider redis, long leaseMs) {
+        return new LoadingCacheImpl(cache, redis, leaseMs);
+    }
+
+    /**
+     * 分布式锁
+     * 等待时间大于 0 时排队等待，按顺序唤醒，需要使用连接池（订阅长期占用一个连接），单连接抛出 {@link IllegalArgumentException}
+     * 否则随机休眠后重试
+     *
+     * @param waitMs        最长等待时间，超时抛出 {@link IllegalStateException}
+     */
+    public static Lock createLock(RedisProvider redis, long waitMs) {
+        return createLock(redis, waitMs, false);
+    }
+
+    /**
+     * 同上
+     *
+     * @param reentrant     同一线程再次锁同一个 key 时不访问 redis，解锁相同次数后释放
+     */
+    public static Lock createLock(RedisProvider redis, long waitMs, boolean reentrant) {
+        return createLock(redis, waitMs, reentrant, 0);
+    }
+
+    /**
+     * 同上
+     *
+     * @param leaseMs       租约时间，大于 0 时后台自动续约，直到解锁或持有线程结束
+     */
+    public static Lock createLock(RedisProvider redis, long waitMs, boolean reentrant, long leaseMs) {
+        return createLock(redis, waitMs, reentrant, leaseMs, false);
+    }
+
+    /**
+     * 同上
+     *
+     * @param local         同一进程内对同一个 key 的竞争先在本地排队，只有胜出者访问 redis
+     */
+    public static Lock createLock(RedisProvider redis, long waitMs, boolean reentrant, long leaseMs, boolean local) {
+        return new RedisLockImpl(redis, waitMs, reentrant, leaseMs, local);
+    }
+
+    /**
+     * 多节点法定数锁（Redlock）
+     * 在创建时池中所有 redis 节点（{@link #createCache} 创建的）上并行加锁，超过半数成功才算获得
+     * 节点在创建时固定，之后池的增减不影响已创建的锁，否则同一把锁的法定数会随之变化
+     *
+     * @param waitMs        最长等待时间，超时抛出 {@link IllegalStateException}
+     * @param leaseMs       租约时间，需要在到期前 delayUnlock
+     * @throws IllegalArgumentException 节点少于 3 个
+     */
+    public static Lock createQuorumLock(ConsistentCachePool pool, long waitMs, long leaseMs) {
+        List<RedisProvider> nodes = new ArrayList<>();
+        for (Cache cache : pool.getNodes()) {
+            if (cache instanceof RedisLockImpl) nodes.add(((RedisLockImpl) cache).getRedis());
+        }
+        return new QuorumLockImpl(nodes, waitMs, leaseMs);
+    }
+
+    /**
+     * 同上，使用固定的节点，节点之间需要相互独立
+     */
+    public static Lock createQuorumLock(List<RedisProvider> nodes, long waitMs, long leaseMs) {
+        return new QuorumLockImpl(nodes, waitMs, leaseMs);
+    }
+
+    /**
+     * 异步缓存
+     * 在独立的线程池中调用，不阻塞调用线程
+     *
+     * @param cache         redis 缓存
+     * @param threads       线程数，应与连接池大小一致
+     */
+    public static AsyncCache createAsyncCache(Cache cache, int threads) {
+        return createAsyncCache(cache, Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "async-cache-" + cache.getUrl());
+            thread.setDaemon(true);
+            return thread;
+        }));
+    }
+
+    /**
+     * 同上，使用指定的线程池
+     */
+    public static AsyncCache createAsyncCache(Cache cache, Executor executor) {
+        return new AsyncCacheImpl(cache, executor);
+    }
+
+    /**
+     * 压缩的序列化，包装任意 {@link Codec}，使用 deflate（最快级别）
+     * 写入格式带有头部，不能读取包装前写入的数据
+     *
+     * @param threshold     超过此字节数才压缩
+     */
+    public static Codec createCompressedCodec(Codec codec, int threshold) {
+        return createCompressedCodec(codec, createDeflateCompressor(Deflater.BEST_SPEED), threshold);
+    }
+
+    /**
+     * 同上，指定压缩算法（如 LZ4、Snappy 的实现）
+     */
+    public static Codec createCompressedCodec(Codec codec, Compressor compressor, int threshold) {
+        return new CompressedCodec(codec, compressor, threshold);
+    }
+
+    /**
+     * deflate 压缩
+     *
+     * @param level         压缩级别，1 ~ 9
+     */
+    public static Compressor createDeflateCompressor(int level) {
+        return new DeflateCompressor(level);
+    }
+
     /**
      * 使用本地的缓存
      */
@@ -72,4 +384,22 @@ public class CacheFactory {
         return new LocalBoundedCacheImpl();
     }
 
+    /**
+     * 使用本地的有界缓存
+     *
+     * @param maximum       最大保存数，超出后按 W-TinyLFU 淘汰
+     */
+    public static Cache createCache(int maximum) {
+        return new LocalBoundedCacheImpl(maximum);
+    }
+
+    /**
+     * 使用本地的有界缓存，key 为 long（如玩家 id），不装箱
+     *
+     * @param maximum       最大保存数，超出后按 CLOCK 淘汰
+     */
+    public static LongCache createLongCache(int maximum) {
+        return new LocalLongCacheImpl(maximum);
+    }
+
 }
@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) 2017 bin jin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.binave.play.data.cache.factory;
+
+import org.binave.common.serialize.Codec;
+import org.binave.play.data.api.Compressor;
+
+/**
+ * 压缩的序列化
+ * 在其他 {@link Codec} 的结果外压缩，超过阈值才压缩，压缩后没有变小则不压缩。
+ *
+ * 格式：头部 1 字节（0 为未压缩，否则为 {@link Compressor#getId()}），
+ * 压缩时之后是 varint 原长度，再之后是数据。
+ * 没有头部的旧数据不能读取，切换时需要使用新的 key 或等待周期过期。
+ *
+ * @author by bin jin on 2017/6/23.
+ * @since 1.8
+ */
+class CompressedCodec implements Codec {
+
+    private static final byte RAW = 0;
+
+    private Codec codec;
+    private Compressor compressor;
+    private int threshold;
+
+    /**
+     * @param threshold     超过此字节数才压缩
+     */
+    CompressedCodec(Codec codec, Compressor compressor, int threshold) {
+        if (codec == null || compressor == null || compressor.getId() <= RAW) throw new IllegalArgumentException();
+        this.codec = codec;
+        this.compressor = compressor;
+        this.threshold = threshold;
+    }
+
+    @Override
+    public byte[] encode(Object obj) {
+        byte[] bytes = codec.encode(obj);
+        if (bytes == null) return null;
+
+        if (bytes.length > threshold) {
+            byte[] compressed = compressor.compress(bytes);
+            int head = 1 + varintSize(bytes.length);
+            if (head + compressed.length < bytes.length) {
+                byte[] result = new byte[head + compressed.length];
+                result[0] = compressor.getId();
+                writeVarint(result, 1, bytes.length);
+                System.arraycopy(compressed, 0, result, head, compressed.length);
+                return result;
+            }
+        }
+
+        byte[] result = new byte[bytes.length + 1];
+        result[0] = RAW;
+        System.arraycopy(bytes, 0, result, 1, bytes.length);
+        return result;
+    }
+
+    @Override
+    public <T> T decode(byte[] bytes, Class<T> type) {
+        if (bytes == null || bytes.length == 0) return codec.decode(bytes, type);
+
+        byte id = bytes[0];
+        byte[] raw;
+        if (id == RAW) {
+            raw = new byte[bytes.length - 1];
+            System.arraycopy(bytes, 1, raw, 0, raw.length);
+        } else if (id == compressor.getId()) {
+            // varint 原长度
+            int length = 0;
+            int pos = 1;
+            for (int shift = 0; ; shift += 7) {
+                if (pos >= bytes.length || shift > 28) throw new IllegalStateException("bad length header");
+                byte b = bytes[pos++];
+                length |= (b & 0x7f) << shift;
+                if (b >= 0) break;
+            }
+            raw = compressor.decompress(bytes, pos, bytes.length - pos, length);
+        } else throw new IllegalStateException("unknown compressor id: " + id);
+
+        return codec.decode(raw, type);
+    }
+
+    private static int varintSize(int value) {
+        int size = 1;
+        while ((value >>>= 7) != 0) size++;
+        return size;
+    }
+
+    private static void writeVarint(byte[] bytes, int pos, int value) {
+        while ((value & ~0x7f) != 0) {
+            bytes[pos++] = (byte) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        bytes[pos] = (byte) value;
+    }
+
+    @Override
+    public String toString() {
+        return "CompressedCodec{" +
+                "codec=" + codec +
+                ", compressor=" + compressor +
+                ", threshold=" + threshold +
+                '}';
+    }
+}
@@ -21,9 +21,18 @@ import org.binave.play.data.api.Cache;
 import org.binave.common.serialize.Codec;
 import org.binave.common.util.FutureTime;
 import org.binave.play.data.api.Adder;
-import redis.clients.jedis.Jedis;
+import org.binave.play.data.api.Batch;
+import org.binave.play.data.api.Numeric;
+import org.binave.play.data.api.RedisProvider;
+import redis.clients.jedis.Pipeline;
 
+import java.io.Closeable;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * 保存自然周期内有效的缓存
@@ -32,22 +41,39 @@ import java.util.Objects;
  * @author bin jin on 2017/4/20.
  * @since 1.8
  */
-class CycleCacheImpl extends RedisLockImpl implements Cache, Adder {
+class CycleCacheImpl extends RedisLockImpl implements Cache, Adder, Batch, Numeric, Closeable {
 
     private String url;
-    private Jedis redis;
+    private RedisProvider redis;
     private FutureTime futureTime;
     private int index;
     private Codec codec;
+    private WriteCoalescer coalescer; // 合并写入，为 null 则同步写入
+    private CycleExpiry expiry;
 
-    CycleCacheImpl(Jedis redis, FutureTime futureTime, int index, Codec codec) {
+    CycleCacheImpl(RedisProvider redis, FutureTime futureTime, int index, Codec codec) {
+        this(redis, futureTime, index, codec, null);
+    }
+
+    CycleCacheImpl(RedisProvider redis, FutureTime futureTime, int index, Codec codec, WriteCoalescer coalescer) {
+        this(redis, futureTime, index, codec, coalescer, 0);
+    }
+
+    /**
+     * @param jitter    过期抖动（秒），见 {@link CycleExpiry}
+     */
+    CycleCacheImpl(RedisProvider redis, FutureTime futureTime, int index, Codec codec, WriteCoalescer coalescer,
+                   int jitter) {
         super(redis);
 
+        this.coalescer = coalescer;
+
         this.redis = redis;
-        this.url = redis.getClient().getHost() + redis.getDB();
+        this.url = redis.getUrl();
         this.futureTime = futureTime;
         this.codec = codec;
         this.index = index;
+        this.expiry = new CycleExpiry(futureTime, index, jitter);
     }
 
     @Override
@@ -56,53 +82,153 @@ class CycleCacheImpl extends RedisLockImpl implements Cache, Adder {
     }
 
     /**
-     * @return {@link Boolean}
+     * @return {@link Boolean}，合并写入时为 {@link CompletableFuture}
      */
     @Override
     public Object put(Object key, Object value) {
-        int sec = futureTime.getSeconds(index, 1, true, true);
-        if (value instanceof Number) {
-            return "OK".equals(
-                    redis.setex(key.toString(), sec, String.valueOf(value))
-            );
-        } else {
-            byte[] keyBytes = CharUtil.toBytes(key);
-            return "OK".equals(
-                    redis.setex(
-                            keyBytes,
-                            sec,
-                            codec.encode(value)
-                    )
-            );
-        }
+        int sec = expiry.getSeconds(key);
+        byte[] keyBytes = CharUtil.toBytes(key);
+        // 数值以十进制保存，可以 incrby
+        byte[] valueBytes = value instanceof Number ? NumberBytes.toBytes((Number) value) : codec.encode(value);
+        if (coalescer != null)
+            return coalescer.submit(pipeline -> pipeline.setex(keyBytes, sec, valueBytes)).thenApply("OK"::equals);
+        return "OK".equals(
+                redis.execute(jedis -> jedis.setex(
+                        keyBytes,
+                        sec,
+                        valueBytes
+                ))
+        );
     }
 
     /**
-     * @return {@link Boolean}
+     * @return {@link Boolean}，合并写入时为 {@link CompletableFuture}
      */
     @Override
     public Object remove(Object key) {
-        return 1 == redis.del(CharUtil.toBytes(key));
+        byte[] keyBytes = CharUtil.toBytes(key);
+        if (coalescer != null) return coalescer.submit(pipeline -> pipeline.del(keyBytes)).thenApply(n -> n == 1);
+        return 1 == redis.execute(jedis -> jedis.del(keyBytes));
     }
 
     @Override
     public <T> T get(Object key, Class<T> type) {
+        long stale = expiry.getStaleMs();
+        if (stale > 0) return decode(getCurrent(key, stale), type);
         if (String.class.equals(type)) {
-            return (T) redis.get(Objects.toString(key));
+            return (T) redis.execute(jedis -> jedis.get(Objects.toString(key)));
         } else if (Number.class.isAssignableFrom(type)) {
-            String value = redis.get(Objects.toString(key));
-            return (T) Integer.valueOf(value.replaceAll("\\..*", ""));
+            byte[] value = redis.execute(jedis -> jedis.get(CharUtil.toBytes(key)));
+            return value == null ? null : (T) NumberBytes.decode(value, type);
         } else {
-            byte[] values = redis.get(CharUtil.toBytes(key));
+            byte[] values = redis.execute(jedis -> jedis.get(CharUtil.toBytes(key)));
             if (values == null) return null;
             return codec.decode(values, type);
         }
     }
 
 
+    @Override
+    public long getLong(Object key, long defaultValue) {
+        byte[] value = getBytes(key);
+        return value == null ? defaultValue : NumberBytes.parseLong(value);
+    }
+
+    @Override
+    public int getInt(Object key, int defaultValue) {
+        byte[] value = getBytes(key);
+        return value == null ? defaultValue : NumberBytes.parseInt(value);
+    }
+
+    @Override
+    public double getDouble(Object key, double defaultValue) {
+        byte[] value = getBytes(key);
+        return value == null ? defaultValue : NumberBytes.parseDouble(value);
+    }
+
     @Override
     public boolean exist(Object key) {
-        return redis.exists(CharUtil.toBytes(key));
+        long stale = expiry.getStaleMs();
+        if (stale > 0) return getCurrent(key, stale) != null;
+        return redis.execute(jedis -> jedis.exists(CharUtil.toBytes(key)));
+    }
+
+    private byte[] getBytes(Object key) {
+        long stale = expiry.getStaleMs();
+        if (stale > 0) return getCurrent(key, stale);
+        return redis.execute(jedis -> jedis.get(CharUtil.toBytes(key)));
+    }
+
+    // 逐个 get，剩余时间小于 ARGV[1] 毫秒的是上周期的 key，视为不存在
+    private final static LuaScript GET_CURRENT = new LuaScript(
+            "local result = {} " +
+                    "for i, k in ipairs(KEYS) do " +
+                    "local v = redis.call('get', k) " +
+                    "if v then " +
+                    "local ttl = redis.call('pttl', k) " +
+                    "if ttl >= 0 and ttl < tonumber(ARGV[1]) then v = false end " +
+                    "end " +
+                    "result[i] = v " +
+                    "end " +
+                    "return result"
+    );
+
+    private byte[] getCurrent(Object key, long stale) {
+        return getCurrent(new byte[][]{CharUtil.toBytes(key)}, stale).get(0);
+    }
+
+    private List<byte[]> getCurrent(byte[][] keysBytes, long stale) {
+        byte[][] params = new byte[keysBytes.length + 1][];
+        System.arraycopy(keysBytes, 0, params, 0, keysBytes.length);
+        params[keysBytes.length] = NumberBytes.toBytes(stale);
+        return (List<byte[]>) redis.execute(jedis -> GET_CURRENT.eval(jedis, keysBytes.length, params));
+    }
+
+    /**
+     * 一次 mget
+     */
+    @Override
+    public <T> List<T> getAll(List<?> keys, Class<T> type) {
+        byte[][] keysBytes = new byte[keys.size()][];
+        for (int i = 0; i < keysBytes.length; i++) keysBytes[i] = CharUtil.toBytes(keys.get(i));
+
+        long stale = expiry.getStaleMs();
+        List<byte[]> values = stale > 0 ? getCurrent(keysBytes, stale) : redis.execute(jedis -> jedis.mget(keysBytes));
+        List<T> result = new ArrayList<>(values.size());
+        for (byte[] value : values) result.add(decode(value, type));
+        return result;
+    }
+
+    /**
+     * 一次管道提交
+     *
+     * @return {@link Boolean}
+     */
+    @Override
+    public Object putAll(Map<?, ?> map) {
+        return redis.execute(jedis -> {
+            Pipeline pipeline = jedis.pipelined();
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                Object value = entry.getValue();
+                pipeline.setex(
+                        CharUtil.toBytes(entry.getKey()),
+                        expiry.getSeconds(entry.getKey()),
+                        value instanceof Number ? NumberBytes.toBytes((Number) value) : codec.encode(value)
+                );
+            }
+            pipeline.sync();
+            return true;
+        });
+    }
+
+    // 与 get 的类型处理保持一致
+    private <T> T decode(byte[] value, Class<T> type) {
+        if (value == null) return null;
+        if (String.class.equals(type)) {
+            return (T) new String(value, StandardCharsets.UTF_8);
+        } else if (Number.class.isAssignableFrom(type)) {
+            return (T) NumberBytes.decode(value, type);
+        } else return codec.decode(value, type);
     }
 
     @Override
@@ -110,20 +236,33 @@ class CycleCacheImpl extends RedisLockImpl implements Cache, Adder {
         throw new UnsupportedOperationException();
     }
 
-    private final static String INCR_IF_EXIST =
-            "if (redis.call('exists', KEYS[1]) == 1) then " +
+    // 上周期的 key 视为不存在，见 GET_CURRENT
+    private final static LuaScript INCR_IF_EXIST = new LuaScript(
+            "local ttl = redis.call('pttl', KEYS[1]) " +
+                    "if (ttl == -1 or ttl >= tonumber(ARGV[2])) then " +
                     "return redis.call('incrby', KEYS[1], ARGV[1]) " +
                     "end " +
-                    "return nil";
+                    "return nil"
+    );
 
     @Override
     public Long adder(Object key, long value) {
-        return (Long) redis.eval(
-                INCR_IF_EXIST,
+        long stale = expiry.getStaleMs();
+        return (Long) redis.execute(jedis -> INCR_IF_EXIST.eval(
+                jedis,
                 1,
                 key.toString(),
-                String.valueOf(value)
-        );
+                String.valueOf(value),
+                String.valueOf(stale)
+        ));
+    }
+
+    /**
+     * 合并写入时，提交队列中剩余的命令并停止提交线程
+     */
+    @Override
+    public void close() {
+        if (coalescer != null) coalescer.close();
     }
 
     @Override
@@ -132,6 +271,7 @@ class CycleCacheImpl extends RedisLockImpl implements Cache, Adder {
                 "url='" + url + '\'' +
                 ", futureTime=" + futureTime +
                 ", index=" + index +
+                ", expiry=" + expiry +
                 '}';
     }
 }
@@ -0,0 +1,146 @@
+/*
+ * Copyright (c) 2017 bin jin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.binave.play.data.cache.factory;
+
+import org.binave.common.util.FutureTime;
+
+import java.util.Objects;
+
+/**
+ * 周期过期时间
+ * 每个周期只向 {@link FutureTime} 计算一次，之后按剩余时间推算
+ *
+ * 指定抖动时，每个 key 的过期时间在周期结束后再推迟 [0, jitter) 秒（按 key 固定），
+ * 避免同时过期。推迟期间上周期的 key 仍然存在，读取时通过 {@link #getStaleMs()} 排除。
+ * 抖动应远小于周期（不超过周期的一半）。
+ *
+ * @author by bin jin on 2017/6/14.
+ * @since 1.8
+ */
+class CycleExpiry {
+
+    private FutureTime futureTime;
+    private int index;
+    private int jitter; // 过期抖动（秒）
+
+    private volatile long boundary; // 本周期结束时刻（毫秒）
+    private volatile long previous; // 上周期结束时刻（毫秒）
+    private volatile long expireAt; // 本周期结束时刻（毫秒），用于 pexpireAt
+
+    CycleExpiry(FutureTime futureTime, int index) {
+        this(futureTime, index, 0);
+    }
+
+    /**
+     * @param jitter    过期抖动（秒），0 为不抖动
+     */
+    CycleExpiry(FutureTime futureTime, int index, int jitter) {
+        if (jitter < 0) throw new IllegalArgumentException();
+        this.futureTime = futureTime;
+        this.index = index;
+        this.jitter = jitter;
+    }
+
+    /**
+     * 跨周期时重新计算
+     */
+    private long refresh(long now) {
+        long boundary = this.boundary;
+        if (now >= boundary) {
+            synchronized (this) {
+                boundary = this.boundary;
+                if (now >= boundary) {
+                    int seconds = futureTime.getSeconds(index, 1, true, true);
+                    this.expireAt = futureTime.getMillisecond(index, 1, true, false);
+                    long next = now + seconds * 1000L;
+                    // 启动时不知道上周期，取一个不会误判本周期 key 的时刻
+                    this.previous = boundary > 0 ? boundary : Math.min(now, next - jitter * 1000L - 1);
+                    this.boundary = boundary = next;
+                }
+            }
+        }
+        return boundary;
+    }
+
+    /**
+     * 距离本周期结束的秒数，用于 setex
+     */
+    int getSeconds() {
+        long now = System.currentTimeMillis();
+        long remain = refresh(now) - now;
+        return (int) Math.max(1, (remain + 999) / 1000);
+    }
+
+    /**
+     * 同上，加上 key 的抖动
+     */
+    int getSeconds(Object key) {
+        return getSeconds() + offset(key);
+    }
+
+    /**
+     * 本周期结束时刻（毫秒）
+     */
+    long getBoundary() {
+        return refresh(System.currentTimeMillis());
+    }
+
+    /**
+     * 本周期结束时刻（毫秒），用于 pexpireAt
+     */
+    long getExpireAt() {
+        refresh(System.currentTimeMillis());
+        return expireAt;
+    }
+
+    /**
+     * 同上，加上 key 的抖动
+     */
+    long getExpireAt(Object key) {
+        return getExpireAt() + offset(key) * 1000L;
+    }
+
+    /**
+     * 上周期的 key 可能还没有过期时，返回判断用的毫秒数，
+     * 剩余时间（pttl）小于此值的为上周期的 key；否则返回 0
+     */
+    long getStaleMs() {
+        if (jitter == 0) return 0;
+        long now = System.currentTimeMillis();
+        long boundary = refresh(now);
+        long end = previous + jitter * 1000L; // 上周期的 key 全部过期的时刻
+        if (now >= end) return 0;
+        // 取中点，容忍各进程之间的时钟误差
+        return Math.max(1, (end + boundary) / 2 - now);
+    }
+
+    // 按 key 固定的抖动秒数
+    private int offset(Object key) {
+        if (jitter == 0) return 0;
+        int h = Objects.toString(key).hashCode() * 0x9E3779B9;
+        return Math.floorMod(h ^ (h >>> 16), jitter);
+    }
+
+    @Override
+    public String toString() {
+        return "CycleExpiry{" +
+                "index=" + index +
+                ", jitter=" + jitter +
+                ", boundary=" + boundary +
+                '}';
+    }
+}
@@ -5,9 +5,18 @@ import org.binave.common.serialize.Codec;
 import org.binave.common.util.FutureTime;
 import org.binave.play.data.api.Cache;
 import org.binave.play.data.api.Adder;
-import redis.clients.jedis.Jedis;
+import org.binave.play.data.api.Batch;
+import org.binave.play.data.api.Numeric;
+import org.binave.play.data.api.RedisProvider;
 
+import java.io.Closeable;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * 保存自然周期内有效的缓存
@@ -15,25 +24,42 @@ import java.util.Objects;
  * @author by bin jin on 2017/5/12.
  * @since 1.8
  */
-class CycleFieldCacheImpl extends RedisLockImpl implements Cache, Adder {
+class CycleFieldCacheImpl extends RedisLockImpl implements Cache, Adder, Batch, Numeric, Closeable {
 
     private String url;
-    private Jedis redis;
+    private RedisProvider redis;
     private FutureTime futureTime;
     private int index;
     private Codec codec;
     private String key;
     private byte[] keyBytes;
+    private WriteCoalescer coalescer; // 合并写入，为 null 则同步写入
+    private CycleExpiry expiry;
 
-    CycleFieldCacheImpl(String key, Jedis redis, FutureTime futureTime, int index, Codec codec) {
+    CycleFieldCacheImpl(String key, RedisProvider redis, FutureTime futureTime, int index, Codec codec) {
+        this(key, redis, futureTime, index, codec, null);
+    }
+
+    CycleFieldCacheImpl(String key, RedisProvider redis, FutureTime futureTime, int index, Codec codec,
+                        WriteCoalescer coalescer) {
+        this(key, redis, futureTime, index, codec, coalescer, 0);
+    }
+
+    /**
+     * @param jitter    过期抖动（秒），见 {@link CycleExpiry}
+     */
+    CycleFieldCacheImpl(String key, RedisProvider redis, FutureTime futureTime, int index, Codec codec,
+                        WriteCoalescer coalescer, int jitter) {
         super(redis);
+        this.coalescer = coalescer;
         this.key = key;
-        this.url = redis.getClient().getHost() + redis.getDB();
+        this.url = redis.getUrl();
         this.redis = redis;
         this.futureTime = futureTime;
         this.index = index;
         this.codec = codec;
         this.keyBytes = CharUtil.toBytes(key);
+        this.expiry = new CycleExpiry(futureTime, index, jitter);
     }
 
     @Override
@@ -41,53 +67,174 @@ class CycleFieldCacheImpl extends RedisLockImpl implements Cache, Adder {
         return url;
     }
 
+    // 写入 ARGV[3..] 的 field、value，key 没有过期时间时（新建，或被删除后重建）设置为 ARGV[1]
+    // 剩余时间小于 ARGV[2] 毫秒的是上周期的 key，先删除
+    // 在服务端一次完成，不依赖本地记录
+    private final static LuaScript HSET_EXPIRE = new LuaScript(
+            "local ttl = redis.call('pttl', KEYS[1]) " +
+                    "if (ttl >= 0 and ttl < tonumber(ARGV[2])) then redis.call('del', KEYS[1]) end " +
+                    "local n = 0 " +
+                    "for i = 3, #ARGV, 2 do " +
+                    "n = n + redis.call('hset', KEYS[1], ARGV[i], ARGV[i + 1]) " +
+                    "end " +
+                    "if (redis.call('pttl', KEYS[1]) == -1) then " +
+                    "redis.call('pexpireat', KEYS[1], ARGV[1]) " +
+                    "end " +
+                    "return n"
+    );
+
+    // 脚本参数：key、过期时刻、上周期判断、field、value...
+    private byte[][] hsetParams(Map<?, ?> map) {
+        byte[][] params = new byte[map.size() * 2 + 3][];
+        params[0] = keyBytes;
+        params[1] = NumberBytes.toBytes(expiry.getExpireAt(key));
+        params[2] = NumberBytes.toBytes(expiry.getStaleMs());
+        int i = 3;
+        for (Map.Entry<?, ?> entry : map.entrySet()) {
+            Object value = entry.getValue();
+            params[i++] = CharUtil.toBytes(entry.getKey());
+            // 数值以十进制保存，可以 hincrby
+            params[i++] = value instanceof Number ? NumberBytes.toBytes((Number) value) : codec.encode(value);
+        }
+        return params;
+    }
+
     /**
-     * @return {@link Boolean}
+     * 写入与设置过期时间在服务端一次完成
+     * 抖动时，若 key 是上周期的（还没过期），先删除再写入
+     *
+     * @return {@link Boolean}，合并写入时为 {@link CompletableFuture}
      */
     @Override
     public Object put(Object field, Object value) {
-        if (value instanceof Number) {
-            return 0 < redis.hset(this.key, field.toString(), String.valueOf(value));
-        } else {
-            byte[] fieldBytes = CharUtil.toBytes(field);
-            if (redis.hset(this.keyBytes, fieldBytes, codec.encode(value)) > 0) {
-                // 减小设置超时时间的频率
-                redis.expireAt(
-                        keyBytes,
-                        futureTime.getMillisecond(index, 1, true, false)
-                );
-                return true;
-            }
-            return false;
+        byte[][] params = hsetParams(Collections.singletonMap(field, value));
+
+        if (coalescer != null) {
+            return coalescer.submit(HSET_EXPIRE, pipeline -> HSET_EXPIRE.eval(pipeline, 1, params))
+                    .thenApply(n -> (Long) n > 0);
         }
+
+        return (Long) redis.execute(jedis -> HSET_EXPIRE.eval(jedis, 1, params)) > 0;
     }
 
     /**
-     * @return {@link Boolean}
+     * @return {@link Boolean}，合并写入时为 {@link CompletableFuture}
      */
     @Override
     public Object remove(Object field) {
-        return 1 == redis.hdel(this.keyBytes, CharUtil.toBytes(field));
+        byte[] fieldBytes = CharUtil.toBytes(field);
+        if (coalescer != null)
+            return coalescer.submit(pipeline -> pipeline.hdel(this.keyBytes, fieldBytes)).thenApply(n -> n == 1);
+        return 1 == redis.execute(jedis -> jedis.hdel(this.keyBytes, fieldBytes));
+    }
+
+    // 剩余时间小于 ARGV[1] 毫秒的是上周期的 key，视为不存在，逐个 hget
+    private final static LuaScript HGET_CURRENT = new LuaScript(
+            "local ttl = redis.call('pttl', KEYS[1]) " +
+                    "if (ttl >= 0 and ttl < tonumber(ARGV[1])) then return {} end " +
+                    "local result = {} " +
+                    "for i = 2, #ARGV do " +
+                    "result[i - 1] = redis.call('hget', KEYS[1], ARGV[i]) " +
+                    "end " +
+                    "return result"
+    );
+
+    // 上周期的 key 返回空列表
+    private List<byte[]> getCurrent(byte[][] fieldsBytes, long stale) {
+        byte[][] params = new byte[fieldsBytes.length + 2][];
+        params[0] = keyBytes;
+        params[1] = NumberBytes.toBytes(stale);
+        System.arraycopy(fieldsBytes, 0, params, 2, fieldsBytes.length);
+        return (List<byte[]>) redis.execute(jedis -> HGET_CURRENT.eval(jedis, 1, params));
+    }
+
+    private byte[] getBytes(Object field) {
+        long stale = expiry.getStaleMs();
+        if (stale > 0) {
+            List<byte[]> values = getCurrent(new byte[][]{CharUtil.toBytes(field)}, stale);
+            return values.isEmpty() ? null : values.get(0);
+        }
+        return redis.execute(jedis -> jedis.hget(keyBytes, CharUtil.toBytes(field)));
     }
 
     @Override
     public <T> T get(Object field, Class<T> type) {
+        if (expiry.getStaleMs() > 0) return decode(getBytes(field), type);
         if (String.class.equals(type)) {
-            return (T) redis.hget(this.key,Objects.toString(field));
+            return (T) redis.execute(jedis -> jedis.hget(this.key, Objects.toString(field)));
         } else if (Number.class.isAssignableFrom(type)) {
-            String value = redis.hget(this.key,Objects.toString(field));
-            return (T) Integer.valueOf(value.replaceAll("\\..*", ""));
+            byte[] value = redis.execute(jedis -> jedis.hget(keyBytes, CharUtil.toBytes(field)));
+            return value == null ? null : (T) NumberBytes.decode(value, type);
         } else {
             byte[] fieldBytes = CharUtil.toBytes(field);
-            byte[] values = redis.hget(keyBytes, fieldBytes);
+            byte[] values = redis.execute(jedis -> jedis.hget(keyBytes, fieldBytes));
             if (values == null) return null;
             return codec.decode(values, type);
         }
     }
 
+    @Override
+    public long getLong(Object field, long defaultValue) {
+        byte[] value = getBytes(field);
+        return value == null ? defaultValue : NumberBytes.parseLong(value);
+    }
+
+    @Override
+    public int getInt(Object field, int defaultValue) {
+        byte[] value = getBytes(field);
+        return value == null ? defaultValue : NumberBytes.parseInt(value);
+    }
+
+    @Override
+    public double getDouble(Object field, double defaultValue) {
+        byte[] value = getBytes(field);
+        return value == null ? defaultValue : NumberBytes.parseDouble(value);
+    }
+
     @Override
     public boolean exist(Object field) {
-        return redis.hexists(keyBytes, CharUtil.toBytes(field));
+        if (expiry.getStaleMs() > 0) return getBytes(field) != null;
+        return redis.execute(jedis -> jedis.hexists(keyBytes, CharUtil.toBytes(field)));
+    }
+
+    /**
+     * 一次 hmget
+     */
+    @Override
+    public <T> List<T> getAll(List<?> fields, Class<T> type) {
+        byte[][] fieldsBytes = new byte[fields.size()][];
+        for (int i = 0; i < fieldsBytes.length; i++) fieldsBytes[i] = CharUtil.toBytes(fields.get(i));
+
+        long stale = expiry.getStaleMs();
+        List<byte[]> values = stale > 0 ? getCurrent(fieldsBytes, stale) : redis.execute(jedis -> jedis.hmget(keyBytes, fieldsBytes));
+        List<T> result = new ArrayList<>(fieldsBytes.length);
+        if (values.isEmpty()) {
+            for (int i = 0; i < fieldsBytes.length; i++) result.add(null);
+        } else for (byte[] value : values) result.add(decode(value, type));
+        return result;
+    }
+
+    /**
+     * 一次脚本调用，同 put
+     *
+     * @return {@link Boolean}
+     */
+    @Override
+    public Object putAll(Map<?, ?> map) {
+        if (map.isEmpty()) return true;
+        byte[][] params = hsetParams(map);
+        redis.execute(jedis -> HSET_EXPIRE.eval(jedis, 1, params));
+        return true;
+    }
+
+    // 与 get 的类型处理保持一致
+    private <T> T decode(byte[] value, Class<T> type) {
+        if (value == null) return null;
+        if (String.class.equals(type)) {
+            return (T) new String(value, StandardCharsets.UTF_8);
+        } else if (Number.class.isAssignableFrom(type)) {
+            return (T) NumberBytes.decode(value, type);
+        } else return codec.decode(value, type);
     }
 
     @Override
@@ -95,23 +242,36 @@ class CycleFieldCacheImpl extends RedisLockImpl implements Cache, Adder {
         throw new UnsupportedOperationException();
     }
 
-    private final static String HINCR_IF_EXIST =
-            "if (redis.call('hexists', KEYS[1], ARGV[1]) == 1) then " +
+    // 上周期的 key 视为不存在
+    private final static LuaScript HINCR_IF_EXIST = new LuaScript(
+            "local ttl = redis.call('pttl', KEYS[1]) " +
+                    "if (ttl >= 0 and ttl < tonumber(ARGV[3])) then return nil end " +
+                    "if (redis.call('hexists', KEYS[1], ARGV[1]) == 1) then " +
                     "return redis.call('hincrby', KEYS[1], ARGV[1], ARGV[2]) " +
                     "end " +
-                    "return nil";
+                    "return nil"
+    );
 
 
     @Override
     public Long adder(Object field, long value) {
-        return (Long) redis.eval(
-                HINCR_IF_EXIST,
+        return (Long) redis.execute(jedis -> HINCR_IF_EXIST.eval(
+                jedis,
                 1,
                 this.key,
                 field.toString(),
-                String.valueOf(value)
-        );
+                String.valueOf(value),
+                String.valueOf(expiry.getStaleMs())
+        ));
+
+    }
 
+    /**
+     * 合并写入时，提交队列中剩余的命令并停止提交线程
+     */
+    @Override
+    public void close() {
+        if (coalescer != null) coalescer.close();
     }
 
     @Override
@@ -122,6 +282,7 @@ class CycleFieldCacheImpl extends RedisLockImpl implements Cache, Adder {
                 ", index=" + index +
                 ", codec=" + codec +
                 ", key='" + key + '\'' +
+                ", expiry=" + expiry +
                 '}';
     }
 }
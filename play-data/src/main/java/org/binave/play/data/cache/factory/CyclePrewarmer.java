@@ -0,0 +1,152 @@
+/*
+ * Copyright (c) 2017 bin jin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.binave.play.data.cache.factory;
+
+import org.binave.common.util.FutureTime;
+import org.binave.play.data.api.Cache;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * 周期预热
+ * 每个周期结束后，把指定的 key 均匀分散在窗口内加载，
+ * 避免周期结束时所有 key 同时缺失、同时访问数据源。
+ * 已经存在的 key（被读取时加载过）跳过。
+ * 每个预热同一时刻只有一个待执行的任务，关闭时取消。
+ *
+ * @author by bin jin on 2017/6/25.
+ * @since 1.8
+ */
+class CyclePrewarmer implements Closeable {
+
+    private final static long DELAY_MS = 1000; // 周期结束后的延迟，避开边界上的时钟误差
+
+    // 只负责定时，加载在 LOADERS 中执行，加载较慢时不影响其他预热
+    private final static ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "cycle-prewarm");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final static ExecutorService LOADERS = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "cycle-prewarm-load");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private Cache cache;
+    private CycleExpiry expiry;
+    private long windowMs;
+    private Supplier<? extends Collection<?>> keys;
+    private Function<Object, ?> loader;
+
+    private volatile boolean closed;
+    private volatile Future<?> pending; // 同一时刻只有一个任务
+
+    /**
+     * @param window    分散加载的窗口（秒）
+     * @param keys      每个周期需要预热的 key
+     * @param loader    加载数据，返回 null 时不放入
+     */
+    CyclePrewarmer(Cache cache, FutureTime futureTime, int index, int window,
+                   Supplier<? extends Collection<?>> keys, Function<Object, ?> loader) {
+        if (cache == null || window <= 0 || keys == null || loader == null) throw new IllegalArgumentException();
+        this.cache = cache;
+        this.expiry = new CycleExpiry(futureTime, index);
+        this.windowMs = window * 1000L;
+        this.keys = keys;
+        this.loader = loader;
+        schedule();
+    }
+
+    // 在下一个周期结束后开始
+    private void schedule() {
+        if (closed) return;
+        long delay = expiry.getBoundary() - System.currentTimeMillis() + DELAY_MS;
+        pending = SCHEDULER.schedule(this::prewarm, Math.max(DELAY_MS, delay), TimeUnit.MILLISECONDS);
+    }
+
+    private void prewarm() {
+        if (closed) return;
+        List<Object> list;
+        try {
+            list = new ArrayList<>(keys.get());
+        } catch (RuntimeException e) {
+            System.err.println("prewarm() " + e);
+            schedule();
+            return;
+        }
+        next(list, 0, System.currentTimeMillis());
+    }
+
+    // 逐个加载，上一个完成后再安排下一个，加载较慢时顺延
+    private void next(List<Object> list, int i, long start) {
+        if (closed) return;
+        if (i >= list.size()) {
+            schedule();
+            return;
+        }
+        long delay = start + windowMs * i / list.size() - System.currentTimeMillis();
+        pending = SCHEDULER.schedule(() -> {
+            if (closed) return;
+            pending = LOADERS.submit(() -> {
+                load(list.get(i));
+                next(list, i + 1, start);
+            });
+        }, Math.max(0, delay), TimeUnit.MILLISECONDS);
+    }
+
+    private void load(Object key) {
+        if (closed) return;
+        try {
+            if (cache.exist(key)) return;
+            Object value = loader.apply(key);
+            if (value != null) cache.put(key, value);
+        } catch (RuntimeException e) {
+            System.err.println("load() key=" + key + ", " + e);
+        }
+    }
+
+    /**
+     * 停止预热，取消尚未执行的任务
+     */
+    @Override
+    public void close() {
+        closed = true;
+        Future<?> future = pending;
+        if (future != null) future.cancel(false);
+    }
+
+    @Override
+    public String toString() {
+        return "CyclePrewarmer{" +
+                "cache=" + cache +
+                ", expiry=" + expiry +
+                ", windowMs=" + windowMs +
+                '}';
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2017 bin jin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.binave.play.data.cache.factory;
+
+import org.binave.play.data.api.Compressor;
+
+import java.io.ByteArrayOutputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * deflate 压缩，不需要额外依赖
+ * Deflater、Inflater 持有本地内存，按线程复用
+ *
+ * @author by bin jin on 2017/6/23.
+ * @since 1.8
+ */
+class DeflateCompressor implements Compressor {
+
+    private static final byte ID = 1;
+
+    private final int level;
+    private final ThreadLocal<Deflater> deflaters;
+    private final ThreadLocal<Inflater> inflaters = ThreadLocal.withInitial(Inflater::new);
+
+    /**
+     * @param level     压缩级别，{@link Deflater#BEST_SPEED} ~ {@link Deflater#BEST_COMPRESSION}
+     */
+    DeflateCompressor(int level) {
+        if (level < Deflater.BEST_SPEED || level > Deflater.BEST_COMPRESSION) throw new IllegalArgumentException();
+        this.level = level;
+        this.deflaters = ThreadLocal.withInitial(() -> new Deflater(level));
+    }
+
+    @Override
+    public byte getId() {
+        return ID;
+    }
+
+    @Override
+    public byte[] compress(byte[] bytes) {
+        Deflater deflater = deflaters.get();
+        deflater.reset();
+        deflater.setInput(bytes);
+        deflater.finish();
+
+        byte[] buffer = new byte[Math.max(64, bytes.length / 2)];
+        ByteArrayOutputStream out = new ByteArrayOutputStream(buffer.length);
+        while (!deflater.finished()) {
+            int count = deflater.deflate(buffer);
+            out.write(buffer, 0, count);
+        }
+        return out.toByteArray();
+    }
+
+    @Override
+    public byte[] decompress(byte[] bytes, int offset, int length, int originalLength) {
+        Inflater inflater = inflaters.get();
+        inflater.reset();
+        inflater.setInput(bytes, offset, length);
+
+        byte[] result = new byte[originalLength];
+        try {
+            int count = 0;
+            while (count < originalLength && !inflater.finished()) {
+                int n = inflater.inflate(result, count, originalLength - count);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+                count += n;
+            }
+            if (count != originalLength)
+                throw new IllegalStateException("inflate length " + count + ", expected " + originalLength);
+        } catch (DataFormatException e) {
+            throw new IllegalStateException(e);
+        }
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "DeflateCompressor{" +
+                "level=" + level +
+                '}';
+    }
+}
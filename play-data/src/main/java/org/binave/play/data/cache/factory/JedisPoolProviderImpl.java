@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2017 bin jin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.binave.play.data.cache.factory;
+
+import org.binave.play.data.api.RedisProvider;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+
+import java.util.function.Function;
+
+/**
+ * 连接池实现
+ * 每次调用借出一个连接，结束后归还，失效的连接由连接池丢弃
+ *
+ * @author by bin jin on 2017/6/10.
+ * @since 1.8
+ */
+class JedisPoolProviderImpl implements RedisProvider {
+
+    private String url;
+    private JedisPool pool;
+    private BorrowStats stats = new BorrowStats();
+
+    JedisPoolProviderImpl(String host, int port, int database, JedisPool pool) {
+        if (host == null || pool == null) throw new IllegalArgumentException();
+        this.url = host + database;
+        this.pool = pool;
+    }
+
+    @Override
+    public String getUrl() {
+        return url;
+    }
+
+    @Override
+    public <R> R execute(Function<Jedis, R> action) {
+        long begin = System.nanoTime();
+        // close 时归还，连接出错则丢弃
+        try (Jedis jedis = pool.getResource()) {
+            stats.record(System.nanoTime() - begin);
+            return action.apply(jedis);
+        }
+    }
+
+    @Override
+    public int getActive() {
+        return pool.getNumActive();
+    }
+
+    @Override
+    public long getMeanBorrowWaitMicros() {
+        return stats.getMeanMicros();
+    }
+
+    @Override
+    public long getMaxBorrowWaitMicros() {
+        return stats.getMaxMicros();
+    }
+
+    @Override
+    public String toString() {
+        return "JedisPoolProviderImpl{" +
+                "url='" + url + '\'' +
+                ", active=" + pool.getNumActive() +
+                ", idle=" + pool.getNumIdle() +
+                ", stats=" + stats +
+                '}';
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright (c) 2017 bin jin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.binave.play.data.cache.factory;
+
+import org.binave.play.data.api.Cache;
+import org.binave.play.data.api.Loading;
+import org.binave.play.data.api.RedisProvider;
+
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * 防击穿的缓存
+ * 包装其他缓存，缺失时同一个 key 只加载一次。
+ *
+ * 进程内同 key 的并发缺失合并为一次加载；
+ * 指定 redis 时再通过短租约在进程之间合并，未拿到租约的进程轮询缓存，租约过期后自己加载。
+ *
+ * 不提前刷新：周期缓存在周期结束时一起过期，提前放入的值过期时间不变，
+ * 且会把下个周期的数据写入本周期。周期结束后的集中加载由预热（{@link CyclePrewarmer}）分散。
+ *
+ * @author by bin jin on 2017/6/24.
+ * @since 1.8
+ */
+class LoadingCacheImpl implements Loading {
+
+    private final static String PREFIX = "#LOAD_";
+    private final static long POLL_MS = 50; // 等待其他进程加载时的轮询间隔
+
+    // 用于区分租约持有者
+    private final String id = UUID.randomUUID().toString();
+
+    private Cache cache;
+    private RedisProvider redis; // 为 null 只在进程内合并
+    private long leaseMs;
+
+    // 正在加载的 key
+    private final Map<Object, CompletableFuture<Object>> flights = new ConcurrentHashMap<>();
+
+    /**
+     * @param redis     用于租约，为 null 只在进程内合并
+     */
+    LoadingCacheImpl(Cache cache, RedisProvider redis, long leaseMs) {
+        if (cache == null || (redis != null && leaseMs <= 0)) throw new IllegalArgumentException();
+        this.cache = cache;
+        this.redis = redis;
+        this.leaseMs = leaseMs;
+    }
+
+    @Override
+    public String getUrl() {
+        return cache.getUrl();
+    }
+
+    @Override
+    public Object put(Object key, Object value) {
+        return cache.put(key, value);
+    }
+
+    @Override
+    public Object remove(Object key) {
+        return cache.remove(key);
+    }
+
+    @Override
+    public <T> T get(Object key, Class<T> type) {
+        return cache.get(key, type);
+    }
+
+    @Override
+    public <T> T get(Object key, Class<T> type, Function<Object, ? extends T> loader) {
+        T value = cache.get(key, type);
+        return value != null ? value : flight(key, type, loader);
+    }
+
+    // 进程内合并
+    private <T> T flight(Object key, Class<T> type, Function<Object, ? extends T> loader) {
+        CompletableFuture<Object> future = new CompletableFuture<>();
+        CompletableFuture<Object> running = flights.putIfAbsent(key, future);
+        if (running != null) {
+            try {
+                return (T) running.join();
+            } catch (CompletionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+                if (cause instanceof Error) throw (Error) cause;
+                throw e;
+            }
+        }
+
+        try {
+            T value = redis == null ? load(key, loader) : leased(key, type, loader);
+            future.complete(value);
+            return value;
+        } catch (RuntimeException | Error e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            flights.remove(key, future);
+        }
+    }
+
+    // 进程间合并，租约过期仍没有结果时自己加载
+    private <T> T leased(Object key, Class<T> type, Function<Object, ? extends T> loader) {
+        long deadline = System.currentTimeMillis() + leaseMs;
+        while (true) {
+            String lease = tryLease(key);
+            if (lease != null) {
+                try {
+                    // 拿到租约前其他进程可能刚刚加载完
+                    T value = cache.get(key, type);
+                    return value != null ? value : load(key, loader);
+                } finally {
+                    releaseLease(key, lease);
+                }
+            }
+
+            try {
+                Thread.sleep(Math.min(POLL_MS, Math.max(1, leaseMs / 10)));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return load(key, loader);
+            }
+
+            T value = cache.get(key, type);
+            if (value != null) return value;
+            if (System.currentTimeMillis() >= deadline) return load(key, loader);
+        }
+    }
+
+    private <T> T load(Object key, Function<Object, ? extends T> loader) {
+        T value = loader.apply(key);
+        if (value != null) cache.put(key, value);
+        return value;
+    }
+
+    /**
+     * @return 租约值，没有拿到为 null；未指定 redis 时为空串
+     */
+    private String tryLease(Object key) {
+        if (redis == null) return "";
+        String value = id + ':' + Thread.currentThread().getId();
+        String status = redis.execute(jedis -> jedis.set(
+                PREFIX + key,
+                value,
+                "NX", // Only set the key if it does not already exist
+                "PX", // milliseconds
+                leaseMs
+        ));
+        return "OK".equals(status) ? value : null;
+    }
+
+    private final static LuaScript DEL_IF_EXIST_VALUE = new LuaScript(
+            "if (redis.call('get', KEYS[1]) == ARGV[1]) then " +
+                    "return redis.call('del', KEYS[1]) " +
+                    "end " +
+                    "return nil"
+    );
+
+    private void releaseLease(Object key, String lease) {
+        if (redis == null || lease == null) return;
+        try {
+            redis.execute(jedis -> DEL_IF_EXIST_VALUE.eval(jedis, 1, PREFIX + key, lease));
+        } catch (RuntimeException e) {
+            // 租约会自动过期
+            System.err.println("releaseLease() key=" + key + ", " + e);
+        }
+    }
+
+    @Override
+    public boolean exist(Object key) {
+        return cache.exist(key);
+    }
+
+    @Override
+    public void trim(int live) {
+        cache.trim(live);
+    }
+
+    @Override
+    public String toString() {
+        return "LoadingCacheImpl{" +
+                "cache=" + cache +
+                ", leaseMs=" + leaseMs +
+                '}';
+    }
+}
@@ -19,14 +19,23 @@ package org.binave.play.data.cache.factory;
 import org.binave.play.data.api.Adder;
 import org.binave.play.data.api.Cache;
 
-import java.util.Comparator;
-import java.util.Map;
-import java.util.Objects;
+import java.util.Queue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * 本地有界限缓存
- * todo 需要修改底层代码
+ *
+ * 淘汰策略为 W-TinyLFU：
+ * 新数据先进入窗口区（LRU），溢出后进入主区的试用段，
+ * 主区满时，用访问频率（{@link FrequencySketch}）决定保留试用段的新数据还是旧数据，
+ * 试用段中再次被访问的数据晋升到保护段（分段 LRU）。
+ *
+ * 读操作不加锁，仅将访问记录写入有损的环形缓冲区，
+ * 写操作进入写缓冲队列，由获得淘汰锁的线程统一整理。
  *
  * @author by bin jin on 2017/5/13.
  * @since 1.8
@@ -34,10 +43,56 @@ import java.util.concurrent.ConcurrentHashMap;
  */
 public class LocalBoundedCacheImpl implements Cache, Adder {
 
+    private final static int DEFAULT_MAXIMUM = 10_000;
+    private final static int READ_BUFFER_SIZE = 128; // 2 的幂
+    private final static int READ_BUFFER_MASK = READ_BUFFER_SIZE - 1;
+    private final static int READ_DRAIN_THRESHOLD = READ_BUFFER_SIZE / 2;
+
+    // 所在区段
+    private final static int NONE = 0;
+    private final static int WINDOW = 1;
+    private final static int PROBATION = 2;
+    private final static int PROTECTED = 3;
+
+    private final ConcurrentHashMap<Object, Node> map = new ConcurrentHashMap<>();
 
-    private Map<Object, Object> map = new ConcurrentHashMap<>();
-//    private Map<Object, SortedEntry> map = new ConcurrentHashMap<>();
-//    private BlockingQueue<SortedEntry> queue = new PriorityBlockingQueue<>();
+    // 读缓冲，允许丢失
+    private final AtomicReferenceArray<Node> readBuffer = new AtomicReferenceArray<>(READ_BUFFER_SIZE);
+    private final AtomicLong readCounter = new AtomicLong();
+
+    // 写缓冲，不允许丢失
+    private final Queue<Runnable> writeBuffer = new ConcurrentLinkedQueue<>();
+
+    // 以下字段仅在淘汰锁内访问
+    private final ReentrantLock evictionLock = new ReentrantLock();
+    private final Deque window = new Deque();
+    private final Deque probation = new Deque();
+    private final Deque protect = new Deque();
+    private final FrequencySketch sketch;
+
+    private volatile int maximum;
+    private int windowMaximum;
+    private int protectedMaximum;
+
+    public LocalBoundedCacheImpl() {
+        this(DEFAULT_MAXIMUM);
+    }
+
+    /**
+     * @param maximum   最大保存数
+     */
+    public LocalBoundedCacheImpl(int maximum) {
+        if (maximum <= 0) throw new IllegalArgumentException("maximum: " + maximum);
+        this.sketch = new FrequencySketch(maximum);
+        setMaximum(maximum);
+    }
+
+    // 窗口区 1%，保护段占主区 80%
+    private void setMaximum(int maximum) {
+        this.maximum = maximum;
+        this.windowMaximum = Math.max(1, maximum / 100);
+        this.protectedMaximum = (int) ((maximum - windowMaximum) * 0.8);
+    }
 
     @Override
     public String getUrl() {
@@ -48,40 +103,48 @@ public class LocalBoundedCacheImpl implements Cache, Adder {
     @Override
     public Object put(Object key, Object value) {
         if (key == null || value == null) throw new NullPointerException();
-        return map.put(key, value);
-
 
-//        synchronized (key) {
-//            SortedEntry entry = map.get(key);
-//            if (entry == null) {
-//                entry = new SortedEntry(key, System.currentTimeMillis(), value);
-//                queue.add(entry);
-//                map.put(key, entry);
-//            } else {
-//                entry.setTime(System.currentTimeMillis());
-//                entry.setValue(value);
-//                queue.remove(entry);
-//                queue.add(entry);
-//                // 排序
-//            }
-//        }
+        Node node = null;
+        for (; ; ) {
+            Node prior = map.get(key);
+            if (prior == null) {
+                if (node == null) node = new Node(key, value);
+                prior = map.putIfAbsent(key, node);
+                if (prior == null) {
+                    Node added = node;
+                    afterWrite(() -> onAdd(added));
+                    return null;
+                }
+            }
+            synchronized (prior) {
+                if (prior.alive) {
+                    Object old = prior.value;
+                    prior.value = value;
+                    afterRead(prior);
+                    return old;
+                }
+            }
+            // 节点已被淘汰，重试
+        }
     }
 
     @Override
     public Object remove(Object key) {
-        return map.remove(key);
+        Node node = map.remove(key);
+        if (node == null) return null;
+        synchronized (node) {
+            node.alive = false;
+        }
+        afterWrite(() -> onRemove(node));
+        return node.value;
     }
 
     @Override
     public <T> T get(Object key, Class<T> type) {
-
-//        SortedEntry entry = map.get(key);
-//        if (entry == null) return null;
-//        entry.setTime(System.currentTimeMillis());
-//        queue.remove(entry);
-//        queue.add(entry);
-//        return (T) entry.getValue();
-        return (T) map.get(key);
+        Node node = map.get(key);
+        if (node == null) return null;
+        afterRead(node);
+        return (T) node.value;
     }
 
     @Override
@@ -94,66 +157,237 @@ public class LocalBoundedCacheImpl implements Cache, Adder {
         return null;
     }
 
+    /**
+     * 裁剪到指定大小，之后的写入也以此为上限
+     *
+     * @param live  留存数
+     */
     @Override
-    public synchronized void trim(int live) {
-//        int size = map.size() - live;
-//        while (size > 0) {
-//            SortedEntry entry = queue.poll();
-//            map.remove(entry.getKey());
-//            --size;
-//        }
+    public void trim(int live) {
+        if (live <= 0) throw new IllegalArgumentException("live: " + live);
+        evictionLock.lock();
+        try {
+            if (live != maximum) {
+                sketch.ensureCapacity(live);
+                setMaximum(live);
+            }
+            maintenance();
+        } finally {
+            evictionLock.unlock();
+        }
     }
 
-    private class SortedEntry implements Comparator<SortedEntry> {
+    /**
+     * 当前保存数
+     */
+    public int size() {
+        return map.size();
+    }
 
-        private Object key;
-        private Long time;
-        private Object value;
+    /**
+     * 记录访问，缓冲区满了才尝试整理
+     */
+    private void afterRead(Node node) {
+        long count = readCounter.getAndIncrement();
+        readBuffer.lazySet((int) count & READ_BUFFER_MASK, node);
+        if ((count & (READ_DRAIN_THRESHOLD - 1)) == READ_DRAIN_THRESHOLD - 1) tryMaintenance();
+    }
 
-        SortedEntry(Object key, Long time, Object value) {
-            this.key = key;
-            this.time = time;
-            this.value = value;
-        }
+    /**
+     * 写操作必须被处理，
+     * 如果锁被占用，由持有者释放后再检查一次队列
+     */
+    private void afterWrite(Runnable task) {
+        writeBuffer.add(task);
+        tryMaintenance();
+    }
 
-        @Override
-        public int compare(SortedEntry o1, SortedEntry o2) {
-            // 倒序
-            return (int) (o2.getTime() - o1.getTime());
+    private void tryMaintenance() {
+        while (evictionLock.tryLock()) {
+            try {
+                maintenance();
+            } finally {
+                evictionLock.unlock();
+            }
+            // 释放锁前可能有新的写入没有被处理
+            if (writeBuffer.isEmpty()) return;
         }
+    }
+
+    // 需要持有淘汰锁
+    private void maintenance() {
+        drainReadBuffer();
+        drainWriteBuffer();
+        evict();
+    }
 
-        @Override
-        public boolean equals(Object o) {
-            if (this == o) return true;
-            if (!(o instanceof SortedEntry)) return false;
-            SortedEntry entry = (SortedEntry) o;
-            return Objects.equals(entry.getKey(), this.getKey()) &&
-                    Objects.equals(entry.getValue(), this.getValue());
+    private void drainReadBuffer() {
+        for (int i = 0; i < READ_BUFFER_SIZE; i++) {
+            Node node = readBuffer.get(i);
+            if (node != null && readBuffer.compareAndSet(i, node, null)) onAccess(node);
         }
+    }
+
+    private void drainWriteBuffer() {
+        Runnable task;
+        while ((task = writeBuffer.poll()) != null) task.run();
+    }
 
-        @Override
-        public int hashCode() {
-            return getKey() != null ? getKey().hashCode() : 0;
+    private void onAdd(Node node) {
+        sketch.increment(node.key);
+        if (!node.alive || node.queue != NONE) return;
+        node.queue = WINDOW;
+        window.addLast(node);
+    }
+
+    private void onRemove(Node node) {
+        unlink(node);
+    }
+
+    private void onAccess(Node node) {
+        sketch.increment(node.key);
+        switch (node.queue) {
+            case WINDOW:
+                window.moveToLast(node);
+                break;
+            case PROBATION:
+                // 晋升到保护段
+                probation.remove(node);
+                node.queue = PROTECTED;
+                protect.addLast(node);
+                // 保护段溢出，降级回试用段
+                while (protect.size > protectedMaximum) {
+                    Node demoted = protect.pollFirst();
+                    demoted.queue = PROBATION;
+                    probation.addLast(demoted);
+                }
+                break;
+            case PROTECTED:
+                protect.moveToLast(node);
+                break;
+            default: // 已删除
         }
+    }
+
+    /**
+     * 淘汰
+     */
+    private void evict() {
 
-        Long getTime() {
-            return time;
+        // 窗口区溢出的数据进入试用段，作为候选
+        while (window.size > windowMaximum) {
+            Node node = window.pollFirst();
+            node.queue = PROBATION;
+            probation.addLast(node);
         }
 
-        void setTime(Long time) {
-            this.time = time;
+        while (window.size + probation.size + protect.size > maximum) {
+
+            Node victim = probation.first;
+            Node candidate = probation.last;
+
+            if (victim == null) {
+                // 试用段空了，只能从保护段或窗口区淘汰
+                victim = protect.first != null ? protect.first : window.first;
+                evictEntry(victim);
+                continue;
+            }
+
+            // TinyLFU 准入：频率低的被淘汰，相同时淘汰新来的
+            if (victim != candidate && sketch.frequency(candidate.key) > sketch.frequency(victim.key)) {
+                evictEntry(victim);
+            } else evictEntry(candidate);
         }
+    }
 
-        Object getKey() {
-            return this.key;
+    private void evictEntry(Node node) {
+        unlink(node);
+        synchronized (node) {
+            node.alive = false;
         }
+        map.remove(node.key, node);
+    }
 
-        Object getValue() {
-            return this.value;
+    private void unlink(Node node) {
+        switch (node.queue) {
+            case WINDOW:
+                window.remove(node);
+                break;
+            case PROBATION:
+                probation.remove(node);
+                break;
+            case PROTECTED:
+                protect.remove(node);
+                break;
+            default:
         }
+        node.queue = NONE;
+    }
+
+    @Override
+    public String toString() {
+        return "LocalBoundedCacheImpl{" +
+                "maximum=" + maximum +
+                ", size=" + map.size() +
+                '}';
+    }
 
-        void setValue(Object value) {
+    private static class Node {
+
+        private final Object key;
+        private volatile Object value;
+        private volatile boolean alive = true; // 修改需要 synchronized
+
+        // 以下字段仅在淘汰锁内访问
+        private int queue = NONE;
+        private Node prev;
+        private Node next;
+
+        Node(Object key, Object value) {
+            this.key = key;
             this.value = value;
         }
     }
+
+    /**
+     * 双向链表，头部最旧
+     */
+    private static class Deque {
+
+        private Node first;
+        private Node last;
+        private int size;
+
+        void addLast(Node node) {
+            node.prev = last;
+            node.next = null;
+            if (last == null) first = node;
+            else last.next = node;
+            last = node;
+            ++size;
+        }
+
+        Node pollFirst() {
+            Node node = first;
+            if (node != null) remove(node);
+            return node;
+        }
+
+        void moveToLast(Node node) {
+            if (node != last) {
+                remove(node);
+                addLast(node);
+            }
+        }
+
+        void remove(Node node) {
+            if (node.prev == null) first = node.next;
+            else node.prev.next = node.next;
+            if (node.next == null) last = node.prev;
+            else node.next.prev = node.prev;
+            node.prev = null;
+            node.next = null;
+            --size;
+        }
+    }
 }
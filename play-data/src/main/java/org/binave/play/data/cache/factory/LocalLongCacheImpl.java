@@ -0,0 +1,305 @@
+/*
+ * Copyright (c) 2017 bin jin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.binave.play.data.cache.factory;
+
+import org.binave.play.data.api.LongCache;
+
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * 本地有界限缓存，key 为 long
+ *
+ * 开放寻址（线性探测，删除时后移填补，无墓碑），key 不装箱。
+ * 读使用 {@link StampedLock} 乐观读，无竞争时不加锁；
+ * 超出上限时使用 CLOCK 算法淘汰（近似 LRU）。
+ *
+ * value 不能为 null，空槽以 value == null 标识，所以 key 可以为 0
+ *
+ * @author by bin jin on 2017/6/5.
+ * @since 1.8
+ */
+class LocalLongCacheImpl implements LongCache {
+
+    private final static int DEFAULT_MAXIMUM = 10_000;
+    private final static int MIN_CAPACITY = 16;
+    private final static int MAX_CAPACITY = 1 << 30;
+
+    private final StampedLock sl = new StampedLock();
+
+    // 以下字段写入时需要持有写锁
+    private long[] keys;
+    private Object[] values;
+    private boolean[] visited; // CLOCK 访问位，读时无锁写入，丢失无影响
+    private int size;
+    private int maximum;
+    private int hand; // CLOCK 指针
+
+    LocalLongCacheImpl() {
+        this(DEFAULT_MAXIMUM);
+    }
+
+    LocalLongCacheImpl(int maximum) {
+        if (maximum <= 0) throw new IllegalArgumentException("maximum: " + maximum);
+        this.maximum = maximum;
+        int capacity = tableSizeFor(Math.min(maximum, 1 << 10) * 2);
+        this.keys = new long[capacity];
+        this.values = new Object[capacity];
+        this.visited = new boolean[capacity];
+    }
+
+    @Override
+    public String getUrl() {
+        // 本地缓存，不支持 池分配策略
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Object put(long key, Object value) {
+        if (value == null) throw new NullPointerException();
+        long stamp = sl.writeLock();
+        try {
+            int index = indexOf(key);
+            if (index >= 0) {
+                Object old = values[index];
+                values[index] = value;
+                visited[index] = true;
+                return old;
+            }
+
+            // 达到上限，先淘汰
+            while (size >= maximum) evict();
+            if ((size + 1) << 1 > keys.length) resize(keys.length << 1);
+
+            int mask = keys.length - 1;
+            int i = mix(key) & mask;
+            while (values[i] != null) i = (i + 1) & mask;
+            keys[i] = key;
+            values[i] = value;
+            visited[i] = false;
+            ++size;
+            return null;
+        } finally {
+            sl.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public Object remove(long key) {
+        long stamp = sl.writeLock();
+        try {
+            int index = indexOf(key);
+            if (index < 0) return null;
+            Object old = values[index];
+            removeAt(index);
+            return old;
+        } finally {
+            sl.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public <T> T get(long key, Class<T> type) {
+        long stamp = sl.tryOptimisticRead();
+        Object[] values = this.values;
+        boolean[] visited = this.visited;
+        int index = find(this.keys, values, key);
+        Object value = index < 0 ? null : values[index];
+        if (!sl.validate(stamp)) {
+            // 有写入，退化为悲观读
+            stamp = sl.readLock();
+            try {
+                values = this.values;
+                visited = this.visited;
+                index = find(this.keys, values, key);
+                value = index < 0 ? null : values[index];
+            } finally {
+                sl.unlockRead(stamp);
+            }
+        }
+        // 仅用于淘汰参考，写到旧表或错位也无所谓
+        if (index >= 0) visited[index] = true;
+        return (T) value;
+    }
+
+    @Override
+    public boolean exist(long key) {
+        return get(key, Object.class) != null;
+    }
+
+    @Override
+    public Object put(Object key, Object value) {
+        return put(toLong(key), value);
+    }
+
+    @Override
+    public Object remove(Object key) {
+        return remove(toLong(key));
+    }
+
+    @Override
+    public <T> T get(Object key, Class<T> type) {
+        return get(toLong(key), type);
+    }
+
+    @Override
+    public boolean exist(Object key) {
+        return exist(toLong(key));
+    }
+
+    /**
+     * 裁剪到指定大小，之后的写入也以此为上限
+     *
+     * @param live  留存数
+     */
+    @Override
+    public void trim(int live) {
+        if (live <= 0) throw new IllegalArgumentException("live: " + live);
+        long stamp = sl.writeLock();
+        try {
+            this.maximum = live;
+            while (size > maximum) evict();
+        } finally {
+            sl.unlockWrite(stamp);
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private static long toLong(Object key) {
+        if (key instanceof Number) return ((Number) key).longValue();
+        throw new IllegalArgumentException("key must be number: " + key);
+    }
+
+    /**
+     * 无锁查找，探测次数不超过表长，防止乐观读时死循环
+     *
+     * @return 所在位置，没有则返回 -1
+     */
+    private static int find(long[] keys, Object[] values, long key) {
+        int mask = Math.min(keys.length, values.length) - 1;
+        int i = mix(key) & mask;
+        for (int n = 0; n <= mask; n++) {
+            if (values[i] == null) return -1;
+            if (keys[i] == key) return i;
+            i = (i + 1) & mask;
+        }
+        return -1;
+    }
+
+    // 需要持有写锁
+    private int indexOf(long key) {
+        int mask = keys.length - 1;
+        int i = mix(key) & mask;
+        while (values[i] != null) {
+            if (keys[i] == key) return i;
+            i = (i + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * 删除并将后续同簇的数据前移，保证线性探测不中断
+     */
+    private void removeAt(int i) {
+        int mask = keys.length - 1;
+        values[i] = null;
+        visited[i] = false;
+        --size;
+
+        int j = i;
+        for (; ; ) {
+            j = (j + 1) & mask;
+            if (values[j] == null) return;
+            int k = mix(keys[j]) & mask; // j 的理想位置
+            // k 不在 (i, j] 区间内，说明可以前移到 i
+            if (i <= j ? (i >= k || k > j) : (i >= k && k > j)) {
+                keys[i] = keys[j];
+                values[i] = values[j];
+                visited[i] = visited[j];
+                values[j] = null;
+                visited[j] = false;
+                i = j;
+            }
+        }
+    }
+
+    /**
+     * CLOCK 淘汰一个
+     */
+    private void evict() {
+        int mask = keys.length - 1;
+        for (; ; ) {
+            int i = hand;
+            if (values[i] != null) {
+                if (!visited[i]) {
+                    // 前移后 i 位置可能是未检查过的数据，指针不动
+                    removeAt(i);
+                    return;
+                }
+                visited[i] = false;
+            }
+            hand = (i + 1) & mask;
+        }
+    }
+
+    private void resize(int capacity) {
+        if (capacity > MAX_CAPACITY) throw new IllegalStateException("capacity: " + capacity);
+        long[] oldKeys = keys;
+        Object[] oldValues = values;
+        boolean[] oldVisited = visited;
+
+        long[] newKeys = new long[capacity];
+        Object[] newValues = new Object[capacity];
+        boolean[] newVisited = new boolean[capacity];
+        int mask = capacity - 1;
+
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldValues[i] == null) continue;
+            int j = mix(oldKeys[i]) & mask;
+            while (newValues[j] != null) j = (j + 1) & mask;
+            newKeys[j] = oldKeys[i];
+            newValues[j] = oldValues[i];
+            newVisited[j] = oldVisited[i];
+        }
+
+        this.keys = newKeys;
+        this.values = newValues;
+        this.visited = newVisited;
+        this.hand = 0;
+    }
+
+    private static int mix(long key) {
+        long h = key * 0x9e3779b97f4a7c15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private static int tableSizeFor(int n) {
+        int size = MIN_CAPACITY;
+        while (size < n && size < MAX_CAPACITY) size <<= 1;
+        return size;
+    }
+
+    @Override
+    public String toString() {
+        return "LocalLongCacheImpl{" +
+                "maximum=" + maximum +
+                ", size=" + size +
+                '}';
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright (c) 2017 bin jin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.binave.play.data.cache.factory;
+
+import org.binave.play.data.api.RedisProvider;
+import redis.clients.jedis.JedisPubSub;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 等待锁的线程
+ * 解锁时向 key 的频道发布下一个等待者的锁号，订阅线程收到后只唤醒对应线程。
+ *
+ * 同一个 {@link RedisProvider} 共用一个订阅，只订阅有人等待的 key 的频道。
+ * 订阅会占用一个连接，按等待者计数，第一个等待者开始订阅，最后一个离开后退订并归还连接。
+ *
+ * @author by bin jin on 2017/6/16.
+ * @since 1.8
+ */
+class LockWaiters {
+
+    private final static long RETRY_MS = 1000; // 订阅重连间隔
+    private final static String BASE_CHANNEL = "#LOCK_RELEASE"; // 一直订阅，没有 key 频道时保持订阅
+
+    private final static Map<RedisProvider, LockWaiters> SHARED = new HashMap<>(); // 只在 synchronized (SHARED) 中使用
+
+    private final Map<Long, Thread> waiters = new ConcurrentHashMap<>();
+    private final Map<String, Integer> channels = new ConcurrentHashMap<>(); // 频道的等待者数
+
+    private RedisProvider redis;
+    private JedisPubSub pubSub;
+    private int refs; // 只在 synchronized (SHARED) 中修改
+    private volatile boolean closed;
+    private boolean unsubscribed; // 已发送全部退订，之后连接可能已归还，不能再写入
+
+    private LockWaiters(RedisProvider redis) {
+        this.redis = redis;
+    }
+
+    /**
+     * 取得 provider 共用的实例，需要 {@link #release}
+     */
+    static LockWaiters acquire(RedisProvider redis) {
+        synchronized (SHARED) {
+            LockWaiters lockWaiters = SHARED.get(redis);
+            if (lockWaiters == null) {
+                lockWaiters = new LockWaiters(redis);
+                lockWaiters.start();
+                SHARED.put(redis, lockWaiters);
+            }
+            lockWaiters.refs++;
+            return lockWaiters;
+        }
+    }
+
+    /**
+     * 没有使用者时退订，停止订阅线程
+     */
+    void release() {
+        synchronized (SHARED) {
+            if (--refs > 0) return;
+            SHARED.remove(redis, this);
+            closed = true;
+        }
+        unsubscribeAll();
+    }
+
+    /**
+     * 当前线程以 stamp 等待 channel 上的通知
+     */
+    void add(String channel, long stamp) {
+        waiters.put(stamp, Thread.currentThread());
+        if (channels.merge(channel, 1, Integer::sum) == 1) subscribe(channel);
+    }
+
+    void remove(String channel, long stamp) {
+        waiters.remove(stamp);
+        if (channels.computeIfPresent(channel, (k, v) -> v == 1 ? null : v - 1) == null) unsubscribe(channel);
+    }
+
+    private void wake(long stamp) {
+        Thread thread = waiters.get(stamp);
+        if (thread != null) LockSupport.unpark(thread);
+    }
+
+    // 订阅前后的通知可能已丢失，全部唤醒后重新检查
+    private void wakeAll() {
+        for (Thread thread : waiters.values()) LockSupport.unpark(thread);
+    }
+
+    // 以下对连接的写入互斥，订阅建立前不写入，建立后补订
+    private synchronized void subscribe(String... channel) {
+        if (unsubscribed || !pubSub.isSubscribed() || channel.length == 0) return;
+        try {
+            pubSub.subscribe(channel);
+        } catch (RuntimeException e) {
+            System.err.println("subscribe() " + e);
+        }
+    }
+
+    private synchronized void unsubscribe(String channel) {
+        // 期间又有人等待时保留
+        if (unsubscribed || !pubSub.isSubscribed() || channels.containsKey(channel)) return;
+        try {
+            pubSub.unsubscribe(channel);
+        } catch (RuntimeException e) {
+            System.err.println("unsubscribe() channel=" + channel + ", " + e);
+        }
+    }
+
+    private synchronized void unsubscribeAll() {
+        if (unsubscribed || !pubSub.isSubscribed()) return;
+        unsubscribed = true;
+        try {
+            pubSub.unsubscribe();
+        } catch (RuntimeException e) {
+            System.err.println("unsubscribe() " + e);
+        }
+    }
+
+    private void start() {
+        pubSub = new JedisPubSub() {
+            @Override
+            public void onMessage(String channel, String message) {
+                // 已没有等待者的频道，退订时可能错过
+                if (!channels.containsKey(channel)) {
+                    unsubscribe(channel);
+                    return;
+                }
+                try {
+                    wake(Long.parseLong(message));
+                } catch (NumberFormatException ignored) {
+                }
+            }
+
+            @Override
+            public void onSubscribe(String channel, int subscribedChannels) {
+                if (!BASE_CHANNEL.equals(channel)) return;
+                // 订阅建立前释放的，在这里退订
+                if (closed) {
+                    unsubscribeAll();
+                    return;
+                }
+                subscribe(channels.keySet().toArray(new String[0]));
+                wakeAll();
+            }
+        };
+
+        Thread thread = new Thread(() -> {
+            while (!closed) {
+                try {
+                    redis.execute(jedis -> {
+                        jedis.subscribe(pubSub, BASE_CHANNEL); // 阻塞，全部退订后返回
+                        return null;
+                    });
+                } catch (RuntimeException e) {
+                    System.err.println("subscribe() " + e);
+                }
+                if (closed) return;
+                try {
+                    Thread.sleep(RETRY_MS);
+                } catch (InterruptedException ignored) {
+                    return;
+                }
+            }
+        }, "lock-subscribe-" + redis.getUrl());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public String toString() {
+        return "LockWaiters{" +
+                "url='" + redis.getUrl() + '\'' +
+                ", channels=" + channels.size() +
+                ", waiters=" + waiters.size() +
+                ", refs=" + refs +
+                '}';
+    }
+}
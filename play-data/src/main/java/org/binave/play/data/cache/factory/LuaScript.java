@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) 2017 bin jin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.binave.play.data.cache.factory;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.exceptions.JedisDataException;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * lua 脚本
+ * 通过 evalsha 调用，只传递脚本摘要。
+ * 服务端没有缓存脚本时（重启、SCRIPT FLUSH、新连接到其他节点）加载一次后重试。
+ *
+ * @author by bin jin on 2017/6/15.
+ * @since 1.8
+ */
+class LuaScript {
+
+    private static final String NO_SCRIPT = "NOSCRIPT";
+
+    private final String source;
+    private final String sha;
+    private final byte[] shaBytes;
+
+    LuaScript(String source) {
+        this.source = source;
+        this.sha = sha1(source);
+        this.shaBytes = sha.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 与 {@link Jedis#eval(String, int, String...)} 相同
+     */
+    Object eval(Jedis jedis, int keyCount, String... params) {
+        try {
+            return jedis.evalsha(sha, keyCount, params);
+        } catch (JedisDataException e) {
+            if (!isNoScript(e)) throw e;
+        }
+        load(jedis);
+        return jedis.evalsha(sha, keyCount, params);
+    }
+
+    /**
+     * 同上，key 和参数为 byte[]
+     */
+    Object eval(Jedis jedis, int keyCount, byte[]... params) {
+        try {
+            return jedis.evalsha(shaBytes, keyCount, params);
+        } catch (JedisDataException e) {
+            if (!isNoScript(e)) throw e;
+        }
+        load(jedis);
+        return jedis.evalsha(shaBytes, keyCount, params);
+    }
+
+    /**
+     * 管道中调用，需要在打开管道前 {@link #load}，否则可能得到 NOSCRIPT
+     */
+    Response<Object> eval(Pipeline pipeline, int keyCount, String... params) {
+        return pipeline.evalsha(sha, keyCount, params);
+    }
+
+    /**
+     * 同上，key 和参数为 byte[]
+     */
+    Response<Object> eval(Pipeline pipeline, int keyCount, byte[]... params) {
+        return pipeline.evalsha(shaBytes, keyCount, params);
+    }
+
+    void load(Jedis jedis) {
+        jedis.scriptLoad(source);
+    }
+
+    static boolean isNoScript(JedisDataException e) {
+        String message = e.getMessage();
+        return message != null && message.startsWith(NO_SCRIPT);
+    }
+
+    String getSha() {
+        return sha;
+    }
+
+    // 与 redis 计算方式一致，无需访问服务端
+    private static String sha1(String source) {
+        byte[] digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1").digest(source.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        char[] chars = new char[digest.length * 2];
+        for (int i = 0; i < digest.length; i++) {
+            chars[i * 2] = Character.forDigit((digest[i] >> 4) & 0xf, 16);
+            chars[i * 2 + 1] = Character.forDigit(digest[i] & 0xf, 16);
+        }
+        return new String(chars);
+    }
+
+    @Override
+    public String toString() {
+        return "LuaScript{" +
+                "sha='" + sha + '\'' +
+                '}';
+    }
+}
@@ -0,0 +1,348 @@
+/*
+ * Copyright (c) 2017 bin jin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.binave.play.data.cache.factory;
+
+import org.binave.common.util.FutureTime;
+import org.binave.play.data.api.Adder;
+import org.binave.play.data.api.Cache;
+import org.binave.play.data.api.RedisProvider;
+import org.binave.play.data.args.WriteMode;
+import redis.clients.jedis.JedisPubSub;
+import redis.clients.jedis.Pipeline;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 二级缓存
+ * 本地有界缓存（L1）+ 远端 redis 缓存（L2）
+ *
+ * 本地数据在 {@link FutureTime} 周期结束时过期，与远端一致。
+ * 修改后通过 redis 发布/订阅通知其他进程清除本地数据，
+ * 订阅断开期间可能漏掉通知，所以重连时清空本地。
+ * 订阅会长期占用一个连接。
+ *
+ * @author by bin jin on 2017/6/6.
+ * @since 1.8
+ */
+class NearCacheImpl implements Cache, Adder, Closeable {
+
+    private final static String CHANNEL_PREFIX = "#NEAR_";
+    private final static long FLUSH_MS = 100; // 延迟写入间隔
+    private final static long RETRY_MS = 1000; // 订阅重连间隔
+    private final static Object REMOVED = new Object(); // 延迟删除标记
+
+    // 用于忽略自己发出的通知
+    private final String id = UUID.randomUUID().toString();
+
+    private Cache remote;
+    private RedisProvider redis;
+    private String channel;
+    private FutureTime futureTime;
+    private int index;
+    private WriteMode mode;
+    private int maximum;
+
+    private volatile LocalBoundedCacheImpl local;
+    private CycleExpiry expiry; // 本地过期时间
+    private volatile boolean closed;
+
+    // 收到通知的次数，用于发现加载期间的失效
+    private final AtomicLong generation = new AtomicLong();
+
+    // 延迟写入，同 key 只保留最后一次
+    private final Map<Object, Object> pending = new ConcurrentHashMap<>();
+    private ScheduledExecutorService flusher;
+
+    private Thread subscriberThread;
+    private JedisPubSub pubSub;
+
+    /**
+     * @param name          缓存名，用于区分通知频道
+     * @param remote        远端缓存
+     * @param redis         用于发布、订阅通知
+     * @param subscribe     是否订阅通知，否则只依赖周期过期
+     * @param maximum       本地最大保存数
+     */
+    NearCacheImpl(String name, Cache remote, RedisProvider redis, boolean subscribe,
+                  FutureTime futureTime, int index, WriteMode mode, int maximum) {
+
+        if (name == null || name.isEmpty() || remote == null || redis == null || mode == null)
+            throw new IllegalArgumentException();
+        // 订阅会一直占用连接，单连接会阻塞其他所有调用
+        if (subscribe && redis instanceof SingleJedisProviderImpl)
+            throw new IllegalArgumentException("subscribe requires a pooled RedisProvider");
+
+        this.remote = remote;
+        this.redis = redis;
+        this.channel = CHANNEL_PREFIX + name;
+        this.futureTime = futureTime;
+        this.index = index;
+        this.mode = mode;
+        this.maximum = maximum;
+        this.expiry = new CycleExpiry(futureTime, index);
+        this.local = new LocalBoundedCacheImpl(maximum);
+
+        if (mode == WriteMode.WRITE_BEHIND) {
+            this.flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "near-flush-" + name);
+                thread.setDaemon(true);
+                return thread;
+            });
+            this.flusher.scheduleWithFixedDelay(this::flush, FLUSH_MS, FLUSH_MS, TimeUnit.MILLISECONDS);
+        }
+
+        if (subscribe) subscribe(name);
+    }
+
+    @Override
+    public String getUrl() {
+        return remote.getUrl();
+    }
+
+    @Override
+    public Object put(Object key, Object value) {
+        if (key == null || value == null) throw new NullPointerException();
+        String localKey = Objects.toString(key);
+        Object result;
+        switch (mode) {
+            case READ_THROUGH:
+                result = remote.put(key, value);
+                local.remove(localKey);
+                publish(localKey);
+                return result;
+            case WRITE_THROUGH:
+                result = remote.put(key, value);
+                local.put(localKey, new Entry(value, expireAt()));
+                publish(localKey);
+                return result;
+            default:
+                local.put(localKey, new Entry(value, expireAt()));
+                pending.put(key, value);
+                return true;
+        }
+    }
+
+    @Override
+    public Object remove(Object key) {
+        String localKey = Objects.toString(key);
+        local.remove(localKey);
+        if (mode == WriteMode.WRITE_BEHIND) {
+            pending.put(key, REMOVED);
+            return true;
+        }
+        Object result = remote.remove(key);
+        publish(localKey);
+        return result;
+    }
+
+    @Override
+    public <T> T get(Object key, Class<T> type) {
+        String localKey = Objects.toString(key);
+        Entry entry = local.get(localKey, Entry.class);
+        if (entry != null) {
+            if (entry.expireAt > System.currentTimeMillis()) {
+                if (type.isInstance(entry.value)) return (T) entry.value;
+            } else local.remove(localKey);
+        }
+
+        if (mode == WriteMode.WRITE_BEHIND) {
+            Object value = pending.get(key);
+            if (value == REMOVED) return null;
+            if (type.isInstance(value)) return (T) value;
+        }
+
+        // 加载期间收到失效通知，则不放入本地
+        long gen = generation.get();
+        T value = remote.get(key, type);
+        if (value != null) {
+            local.put(localKey, new Entry(value, expireAt()));
+            if (gen != generation.get()) local.remove(localKey);
+        }
+        return value;
+    }
+
+    @Override
+    public boolean exist(Object key) {
+        Entry entry = local.get(Objects.toString(key), Entry.class);
+        if (entry != null && entry.expireAt > System.currentTimeMillis()) return true;
+        if (mode == WriteMode.WRITE_BEHIND) {
+            Object value = pending.get(key);
+            if (value != null) return value != REMOVED;
+        }
+        return remote.exist(key);
+    }
+
+    /**
+     * 只裁剪本地
+     */
+    @Override
+    public void trim(int live) {
+        local.trim(live);
+    }
+
+    /**
+     * 累加在远端进行，之后清除本地
+     */
+    @Override
+    public Long adder(Object key, long value) {
+        if (!(remote instanceof Adder)) throw new UnsupportedOperationException();
+        if (mode == WriteMode.WRITE_BEHIND) flush();
+        String localKey = Objects.toString(key);
+        Long result = ((Adder) remote).adder(key, value);
+        local.remove(localKey);
+        publish(localKey);
+        return result;
+    }
+
+    /**
+     * 停止订阅，写入未完成的数据
+     */
+    @Override
+    public void close() {
+        closed = true;
+        if (pubSub != null && pubSub.isSubscribed()) pubSub.unsubscribe();
+        if (flusher != null) {
+            flusher.shutdown();
+            flush();
+        }
+    }
+
+    /**
+     * 本地过期时间，只在跨周期时重新计算
+     */
+    private long expireAt() {
+        return expiry.getExpireAt();
+    }
+
+    /**
+     * 将延迟的数据写入远端
+     */
+    private synchronized void flush() {
+        if (pending.isEmpty()) return;
+        List<String> messages = new ArrayList<>(pending.size());
+        for (Map.Entry<Object, Object> entry : pending.entrySet()) {
+            Object key = entry.getKey();
+            Object value = entry.getValue();
+            // 期间被再次修改的，留到下一次
+            if (!pending.remove(key, value)) continue;
+            try {
+                if (value == REMOVED) {
+                    remote.remove(key);
+                } else remote.put(key, value);
+            } catch (RuntimeException e) {
+                // 写入失败则放回，没有更新的值才放回
+                pending.putIfAbsent(key, value);
+                System.err.println("flush() key=" + key + ", " + e);
+                continue;
+            }
+            messages.add(message(Objects.toString(key)));
+        }
+        if (!messages.isEmpty()) publish(messages);
+    }
+
+    private void publish(String localKey) {
+        redis.execute(jedis -> jedis.publish(channel, message(localKey)));
+    }
+
+    private void publish(List<String> messages) {
+        redis.execute(jedis -> {
+            Pipeline pipeline = jedis.pipelined();
+            for (String message : messages) pipeline.publish(channel, message);
+            pipeline.sync();
+            return null;
+        });
+    }
+
+    private String message(String localKey) {
+        return id + ':' + localKey;
+    }
+
+    /**
+     * 独立线程阻塞订阅，断开后重连
+     */
+    private void subscribe(String name) {
+        this.pubSub = new JedisPubSub() {
+            @Override
+            public void onMessage(String channel, String message) {
+                // 自己发出的
+                if (message.startsWith(id)) return;
+                int colon = message.indexOf(':');
+                generation.incrementAndGet();
+                local.remove(message.substring(colon + 1));
+            }
+        };
+
+        this.subscriberThread = new Thread(() -> {
+            boolean first = true;
+            while (!closed) {
+                if (!first) {
+                    // 断开期间的通知已丢失
+                    generation.incrementAndGet();
+                    local = new LocalBoundedCacheImpl(maximum);
+                }
+                first = false;
+                try {
+                    redis.execute(jedis -> {
+                        jedis.subscribe(pubSub, channel); // 阻塞
+                        return null;
+                    });
+                } catch (RuntimeException e) {
+                    if (closed) return;
+                    System.err.println("subscribe() channel=" + channel + ", " + e);
+                    try {
+                        Thread.sleep(RETRY_MS);
+                    } catch (InterruptedException ignored) {
+                        return;
+                    }
+                }
+            }
+        }, "near-subscribe-" + name);
+        this.subscriberThread.setDaemon(true);
+        this.subscriberThread.start();
+    }
+
+    @Override
+    public String toString() {
+        return "NearCacheImpl{" +
+                "remote=" + remote +
+                ", channel='" + channel + '\'' +
+                ", mode=" + mode +
+                ", local=" + local +
+                '}';
+    }
+
+    private static class Entry {
+
+        private final Object value;
+        private final long expireAt;
+
+        Entry(Object value, long expireAt) {
+            this.value = value;
+            this.expireAt = expireAt;
+        }
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 2017 bin jin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.binave.play.data.cache.factory;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 数值与 redis 字节之间的转换
+ * 与字符串形式一致，不经过中间字符串，也不使用正则
+ *
+ * @author by bin jin on 2017/6/22.
+ * @since 1.8
+ */
+final class NumberBytes {
+
+    private static final byte[] MIN_LONG = String.valueOf(Long.MIN_VALUE).getBytes(StandardCharsets.US_ASCII);
+    private static final int EXACT_DIGITS = 15; // 不超过此位数的整数可以精确表示为 double
+
+    private NumberBytes() {
+    }
+
+    /**
+     * 整数写为十进制字节，其他数值使用 toString
+     */
+    static byte[] toBytes(Number value) {
+        if (value instanceof Long || value instanceof Integer || value instanceof Short ||
+                value instanceof Byte || value instanceof AtomicLong || value instanceof AtomicInteger)
+            return toBytes(value.longValue());
+        return value.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    static byte[] toBytes(long value) {
+        if (value == Long.MIN_VALUE) return MIN_LONG.clone();
+
+        boolean negative = value < 0;
+        if (negative) value = -value;
+
+        int size = negative ? 2 : 1;
+        for (long v = value; v >= 10; v /= 10) size++;
+
+        byte[] bytes = new byte[size];
+        int pos = size;
+        do {
+            bytes[--pos] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value != 0);
+        if (negative) bytes[0] = '-';
+        return bytes;
+    }
+
+    /**
+     * 小数部分截断
+     */
+    static long parseLong(byte[] bytes) {
+        int length = bytes.length;
+        if (length == 0) throw new NumberFormatException("empty");
+
+        int i = 0;
+        boolean negative = false;
+        if (bytes[0] == '-' || bytes[0] == '+') {
+            negative = bytes[0] == '-';
+            if (++i == length) throw numberFormat(bytes);
+        }
+
+        // 按负数累加，以便表示 Long.MIN_VALUE
+        long limit = negative ? Long.MIN_VALUE : -Long.MAX_VALUE;
+        long multmin = limit / 10;
+        long result = 0;
+        for (; i < length; i++) {
+            byte b = bytes[i];
+            if (b == '.') break;
+            int digit = b - '0';
+            if (digit < 0 || digit > 9 || result < multmin) throw numberFormat(bytes);
+            result *= 10;
+            if (result < limit + digit) throw numberFormat(bytes);
+            result -= digit;
+        }
+        return negative ? result : -result;
+    }
+
+    /**
+     * 小数部分截断
+     */
+    static int parseInt(byte[] bytes) {
+        long value = parseLong(bytes);
+        if (value != (int) value) throw numberFormat(bytes);
+        return (int) value;
+    }
+
+    /**
+     * 较短的整数直接解析，其他交给 {@link Double#parseDouble}
+     */
+    static double parseDouble(byte[] bytes) {
+        if (bytes.length > 0 && bytes.length <= EXACT_DIGITS) {
+            boolean integer = true;
+            for (int i = 0; i < bytes.length && integer; i++) {
+                byte b = bytes[i];
+                integer = b >= '0' && b <= '9' || i == 0 && (b == '-' || b == '+') && bytes.length > 1;
+            }
+            if (integer) return parseLong(bytes);
+        }
+        return Double.parseDouble(new String(bytes, StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * 按类型解析，未知的数值类型返回 {@link Integer}
+     */
+    static Number decode(byte[] bytes, Class<?> type) {
+        if (Long.class.equals(type)) {
+            return parseLong(bytes);
+        } else if (Double.class.equals(type)) {
+            return parseDouble(bytes);
+        } else if (Float.class.equals(type)) {
+            return (float) parseDouble(bytes);
+        } else if (Short.class.equals(type)) {
+            return (short) parseInt(bytes);
+        } else if (Byte.class.equals(type)) {
+            return (byte) parseInt(bytes);
+        } else return parseInt(bytes);
+    }
+
+    private static NumberFormatException numberFormat(byte[] bytes) {
+        return new NumberFormatException("For input: \"" + new String(bytes, StandardCharsets.US_ASCII) + '"');
+    }
+}
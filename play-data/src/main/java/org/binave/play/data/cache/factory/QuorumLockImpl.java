@@ -0,0 +1,277 @@
+/*
+ * Copyright (c) 2017 bin jin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.binave.play.data.cache.factory;
+
+import org.binave.play.data.api.Lock;
+import org.binave.play.data.api.RedisProvider;
+import redis.clients.jedis.Jedis;
+
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
+
+/**
+ * 多节点法定数锁（Redlock）
+ * 在多个独立的 redis 节点上并行加锁，超过半数成功且用时小于租约才算获得，
+ * 否则释放已获得的节点后重试。单个节点故障或主从切换不会丢失锁。
+ *
+ * 有效时间为租约扣除加锁用时和时钟漂移，没有剩余时视为失败。
+ * 不可重入，没有自动续约，需要 {@link #delayUnlock}。
+ *
+ * @author by bin jin on 2017/6/20.
+ * @since 1.8
+ */
+class QuorumLockImpl implements Lock {
+
+    private final static String PREFIX = "#QLOCK_";
+    private final static double CLOCK_DRIFT_FACTOR = 0.01; // 时钟漂移，租约的比例
+    private final static long CLOCK_DRIFT_MIN_MS = 2;
+    private final static int MAX_SLEEP_MS = 100; // milliseconds
+    private final static int MIN_SLEEP_MS = 5;
+    private final static int MIN_NODES = 3; // 少于 3 个节点时，单个节点故障即无法过半
+
+    // 并行访问各节点
+    private static final ExecutorService EXECUTOR = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "quorum-lock");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private List<RedisProvider> nodes;
+    private long waitMs;
+    private long leaseMs;
+    private long nodeTimeoutMs; // 单个节点的等待时间，远小于租约
+
+    private Random random = new SecureRandom();
+    private Map<Long, Held> stampMap = new ConcurrentHashMap<>(); // 同一个实例由多个线程共享
+
+    /**
+     * @param nodes     相互独立的节点，创建时复制，之后不再变化，不少于 3 个
+     * @param waitMs    最长等待时间，超时抛出 {@link IllegalStateException}
+     * @param leaseMs   租约时间
+     */
+    QuorumLockImpl(List<RedisProvider> nodes, long waitMs, long leaseMs) {
+        if (nodes == null || leaseMs <= 0) throw new IllegalArgumentException();
+        if (nodes.size() < MIN_NODES)
+            throw new IllegalArgumentException("quorum lock requires at least " + MIN_NODES + " nodes: " + nodes.size());
+        this.nodes = Collections.unmodifiableList(new ArrayList<>(nodes));
+        this.waitMs = waitMs;
+        this.leaseMs = leaseMs;
+        this.nodeTimeoutMs = Math.max(1, leaseMs / 10);
+    }
+
+    @Override
+    public long lock(String key) {
+        return lockAll(key);
+    }
+
+    // 全部 key 都没有被占用时才加锁
+    private static final LuaScript ACQUIRE = new LuaScript(
+            "for i = 1, #KEYS do " +
+                    "if (redis.call('exists', KEYS[i]) == 1) then return 0 end " +
+                    "end " +
+                    "for i = 1, #KEYS do " +
+                    "redis.call('set', KEYS[i], ARGV[1], 'PX', ARGV[2]) " +
+                    "end " +
+                    "return 1"
+    );
+
+    /**
+     * 多个 key 在每个节点上一次全部加锁
+     */
+    @Override
+    public long lockAll(String... keys) {
+        if (keys == null || keys.length == 0) throw new IllegalArgumentException();
+
+        String[] sorted = new TreeSet<>(Arrays.asList(keys)).toArray(new String[0]);
+        long deadline = System.currentTimeMillis() + waitMs;
+        while (true) {
+            Held held = reserve(sorted, nodes);
+            if (acquire(held)) return held.stamp;
+            stampMap.remove(held.stamp, held);
+
+            if (System.currentTimeMillis() >= deadline)
+                throw new IllegalStateException("[lock] " + Arrays.toString(sorted) +
+                        " wait timeout: " + waitMs + "ms");
+            try {
+                // 休眠一个随机时间，以防和其他线程、进程同时争抢锁
+                Thread.sleep(random.nextInt(MAX_SLEEP_MS - MIN_SLEEP_MS) + MIN_SLEEP_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("[lock] " + Arrays.toString(sorted) + " interrupted");
+            }
+        }
+    }
+
+    private Held reserve(String[] keys, List<RedisProvider> providers) {
+        Held held;
+        do {
+            held = new Held(random.nextLong(), keys, providers);
+        } while (stampMap.putIfAbsent(held.stamp, held) != null);
+        return held;
+    }
+
+    private boolean acquire(Held held) {
+        String[] params = params(held, String.valueOf(leaseMs));
+        long start = System.nanoTime();
+        int votes = vote(held.nodes, jedis -> ACQUIRE.eval(jedis, held.keys.length, params));
+        if (votes >= quorum(held.nodes.size()) && validate(start)) return true;
+
+        // 没有达到法定数或已超时，释放已获得的节点
+        release(held);
+        return false;
+    }
+
+    // 续约期间仍被 stamp 持有
+    private static final LuaScript EXTEND = new LuaScript(
+            "for i = 1, #KEYS do " +
+                    "if (redis.call('get', KEYS[i]) ~= ARGV[1]) then return 0 end " +
+                    "end " +
+                    "for i = 1, #KEYS do " +
+                    "redis.call('pexpire', KEYS[i], ARGV[2]) " +
+                    "end " +
+                    "return 1"
+    );
+
+    /**
+     * 重置为一个完整租约，同样需要法定数
+     */
+    @Override
+    public boolean delayUnlock(long stamp) {
+        Held held = stampMap.get(stamp);
+        if (held == null) return false;
+        String[] params = params(held, String.valueOf(leaseMs));
+        long start = System.nanoTime();
+        int votes = vote(held.nodes, jedis -> EXTEND.eval(jedis, held.keys.length, params));
+        return votes >= quorum(held.nodes.size()) && validate(start);
+    }
+
+    // 如果 key 和 value 都相同则删除
+    private static final LuaScript RELEASE = new LuaScript(
+            "local count = 0 " +
+                    "for i = 1, #KEYS do " +
+                    "if (redis.call('get', KEYS[i]) == ARGV[1]) then " +
+                    "redis.call('del', KEYS[i]) " +
+                    "count = count + 1 " +
+                    "end " +
+                    "end " +
+                    "return count"
+    );
+
+    /**
+     * 在加锁时的所有节点上释放
+     */
+    @Override
+    public void unlock(long stamp) {
+        Held held = stampMap.remove(stamp);
+        if (held != null) release(held);
+    }
+
+    @Override
+    public void unlockAll(long stamp) {
+        unlock(stamp);
+    }
+
+    private void release(Held held) {
+        String[] params = params(held);
+        vote(held.nodes, jedis -> RELEASE.eval(jedis, held.keys.length, params));
+    }
+
+    /**
+     * 扣除用时和时钟漂移后仍有剩余
+     */
+    private boolean validate(long start) {
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        long drift = (long) (leaseMs * CLOCK_DRIFT_FACTOR) + CLOCK_DRIFT_MIN_MS;
+        return leaseMs - elapsed - drift > 0;
+    }
+
+    /**
+     * 并行在所有节点执行，返回结果为 1 的节点数
+     * 超时或不可用的节点视为失败
+     */
+    private int vote(List<RedisProvider> providers, Function<Jedis, Object> action) {
+        List<CompletableFuture<Object>> futures = new ArrayList<>(providers.size());
+        for (RedisProvider provider : providers)
+            futures.add(CompletableFuture.supplyAsync(() -> provider.execute(action), EXECUTOR));
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(nodeTimeoutMs);
+        int votes = 0;
+        for (CompletableFuture<Object> future : futures) {
+            try {
+                Object result = future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                if (result instanceof Long && (Long) result > 0) votes++;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (ExecutionException | TimeoutException ignored) {
+            }
+        }
+        return votes;
+    }
+
+    private static int quorum(int size) {
+        return size / 2 + 1;
+    }
+
+    // KEYS 在前，ARGV 在后
+    private static String[] params(Held held, String... args) {
+        String[] params = new String[held.keys.length + 1 + args.length];
+        for (int i = 0; i < held.keys.length; i++) params[i] = PREFIX + held.keys[i];
+        params[held.keys.length] = String.valueOf(held.stamp);
+        System.arraycopy(args, 0, params, held.keys.length + 1, args.length);
+        return params;
+    }
+
+    @Override
+    public String toString() {
+        return "QuorumLockImpl{" +
+                "waitMs=" + waitMs +
+                ", leaseMs=" + leaseMs +
+                ", held=" + stampMap.size() +
+                '}';
+    }
+
+    /**
+     * 已获得（或正在获得）的锁，记录加锁时的节点，解锁时使用
+     */
+    private static class Held {
+
+        private final long stamp;
+        private final String[] keys;
+        private final List<RedisProvider> nodes;
+
+        Held(long stamp, String[] keys, List<RedisProvider> nodes) {
+            this.stamp = stamp;
+            this.keys = keys;
+            this.nodes = nodes;
+        }
+    }
+}
@@ -17,37 +17,114 @@
 package org.binave.play.data.cache.factory;
 
 import org.binave.play.data.api.Lock;
+import org.binave.play.data.api.RedisProvider;
 import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.exceptions.JedisDataException;
 
+import java.lang.ref.WeakReference;
 import java.security.SecureRandom;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.TreeSet;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * 单点分布式锁实现
  * 使用 lua 脚本保证原子性
  *
+ * 设置了等待时间时使用排队模式：
+ * 没拿到锁的进入有序集合排队，只有队首可以加锁，
+ * 解锁时发布队首的锁号，只唤醒队首，不再轮询。
+ * 同一个 key 不能混用两种模式。
+ *
+ * 可重入时，同一线程再次锁同一个 key 只增加计数，返回相同的锁号，
+ * 解锁相同次数后才真正释放。
+ *
+ * 多个 key 时在一个脚本中按顺序全部加锁，有任何一个被占用（或有人排队）则都不加，
+ * 之后重试，不进入队列，也不可重入。
+ *
+ * 本地优先时，同一进程内对同一个 key 的竞争先在本地排队，
+ * 只有本地胜出的线程访问 redis，本地等待的上限与失败方式与访问 redis 相同（轮询模式为重试次数对应的时间）。
+ * 本地锁按 key 区分而不是按 hash 分段，以免不同 key 落在同一段时嵌套加锁造成死锁。
+ * 多个 key 的锁不经过本地。
+ *
+ * 设置了租约时间时，由共享的后台线程每 1/3 租约续约一次，
+ * 同一实例持有的锁在一次管道中完成。持有线程结束或解锁后不再续约，
+ * 进程崩溃时最多在一个租约后释放。
+ *
  * @author bin jin on 2017/4/21.
  * @since 1.8
  */
 public class RedisLockImpl implements Lock {
 
-    private final static long LOCK_MS = 30000; // milliseconds
+    private final static long LOCK_MS = 30000; // milliseconds，没有设置租约时使用
     private final static int RECURSION_DEPTH_LIMIT = 30; // 递归深度限制
     private final static int MAX_SLEEP_MS = 100; // milliseconds
     private final static int MIN_SLEEP_MS = 5;
+    // 轮询加锁最长的等待时间，本地排队使用相同的上限
+    private final static long POLL_BUDGET_MS = (RECURSION_DEPTH_LIMIT + 1L) * MAX_SLEEP_MS;
     private final static String PREFIX = "#LOCK_";
 
-    private Jedis redis;
+    private final static String QUEUE_PREFIX = "#LOCKQ_"; // 排队顺序
+    private final static String ALIVE_PREFIX = "#LOCKA_"; // 等待者存活期限
+    private final static String CHANNEL_PREFIX = "#LOCKR_"; // 解锁通知，每个 key 一个频道
+    private final static long ALIVE_MS = 10000; // 等待者超过此时间没有刷新，视为已离开
+    private final static long MAX_PARK_MS = 1000; // 最长休眠，期间刷新存活期限
+
+    // 所有实例共用的续约线程
+    private final static ScheduledExecutorService WATCHDOG = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "lock-watchdog");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private RedisProvider redis;
     private Random random = new SecureRandom();
-    private Map<Long, String> stampMap = new HashMap<>(); // 无需线程安全，获得好的性能
+    private Map<Long, Held> stampMap = new ConcurrentHashMap<>(); // 同一个实例由多个线程共享
+    private Map<String, Held> heldMap = new ConcurrentHashMap<>(); // 可重入时使用
+
+    private long waitMs; // 大于 0 时排队等待，否则轮询
+    private boolean reentrant;
+    private long leaseMs; // 锁的过期时间
+    private boolean watchdog; // 是否自动续约
+    private volatile boolean watching;
+    private Map<String, Local> localMap; // 本地优先时使用
+
+    RedisLockImpl(RedisProvider redis) {
+        this(redis, 0, false, 0, false);
+    }
 
-    RedisLockImpl(Jedis redis) {
+    /**
+     * @param waitMs    排队等待的最长时间，超时抛出 {@link IllegalStateException}
+     * @param reentrant 同一线程是否可重入
+     * @param leaseMs   租约时间，大于 0 时自动续约，否则固定 {@link #LOCK_MS}
+     * @param local     同一进程内的竞争是否先在本地排队
+     */
+    RedisLockImpl(RedisProvider redis, long waitMs, boolean reentrant, long leaseMs, boolean local) {
+        // 排队等待期间订阅会占用一个连接，单连接会阻塞其他所有调用
+        if (waitMs > 0 && redis instanceof SingleJedisProviderImpl)
+            throw new IllegalArgumentException("queued lock requires a pooled RedisProvider");
         this.redis = redis;
+        this.waitMs = waitMs;
+        this.reentrant = reentrant;
+        this.watchdog = leaseMs > 0;
+        this.leaseMs = watchdog ? leaseMs : LOCK_MS;
+        if (local) this.localMap = new ConcurrentHashMap<>();
     }
 
-    Jedis getJedis() {
+    RedisProvider getRedis() {
         return this.redis;
     }
 
@@ -56,29 +133,182 @@ public class RedisLockImpl implements Lock {
      */
     @Override
     public long lock(String key) {
-        int depth = 0;
-        return lock(key, depth);
+        // 已经持有，不再访问 redis
+        Held held = reentrant ? heldMap.get(key) : null;
+        if (held != null && held.owner == Thread.currentThread() && held.retain()) return held.stamp;
+
+        long deadline = System.currentTimeMillis() + waitMs;
+
+        // 本地胜出后才访问 redis，超时与访问 redis 的失败方式相同
+        Local local = null;
+        if (localMap != null) {
+            local = enterLocal(key, waitMs > 0 ? deadline : System.currentTimeMillis() + POLL_BUDGET_MS);
+            if (local == null) {
+                if (waitMs > 0)
+                    throw new IllegalStateException("[lock] \'" + key + "\' wait timeout: " + waitMs + "ms");
+                throw new StackOverflowError("[lock] \'" + key +
+                        "\' maximum recursion depth: " + RECURSION_DEPTH_LIMIT);
+            }
+        }
+
+        held = reserve(key);
+        held.local = local;
+        boolean locked = false;
+        try {
+            if (waitMs > 0) {
+                queuedLock(key, held.stamp, deadline);
+            } else {
+                int depth = 0;
+                lock(key, String.valueOf(held.stamp), depth);
+            }
+            locked = true;
+        } finally {
+            if (!locked) {
+                stampMap.remove(held.stamp, held);
+                exitLocal(key, local);
+            }
+        }
+
+        held.holds.set(1);
+        if (reentrant) heldMap.put(key, held);
+        if (watchdog && !watching) watch();
+        return held.stamp;
+    }
+
+    /**
+     * 在本地排队，超时返回 null
+     */
+    private Local enterLocal(String key, long deadline) {
+        Local local = localMap.compute(key, (k, v) -> {
+            if (v == null) v = new Local();
+            v.users++;
+            return v;
+        });
+
+        boolean acquired = false;
+        try {
+            acquired = local.permit.tryAcquire(
+                    Math.max(0, deadline - System.currentTimeMillis()),
+                    TimeUnit.MILLISECONDS
+            );
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (!acquired) leaveLocal(key, local);
+        }
+        return acquired ? local : null;
+    }
+
+    private void exitLocal(String key, Local local) {
+        if (local == null) return;
+        local.permit.release();
+        leaveLocal(key, local);
+    }
+
+    // 没有使用者时移除
+    private void leaveLocal(String key, Local local) {
+        localMap.computeIfPresent(key, (k, v) -> v == local && --v.users == 0 ? null : v);
+    }
+
+    /**
+     * 占用一个本实例内不重复的锁号
+     */
+    private Held reserve(String... keys) {
+        Held held;
+        do {
+            held = new Held(random.nextLong(), keys);
+        } while (stampMap.putIfAbsent(held.stamp, held) != null);
+        return held;
+    }
+
+    // 任何一个 key 被占用或有人排队，返回其剩余毫秒数，否则全部加锁，返回 -1
+    // KEYS 前半为锁，后半为对应的队列
+    private static final LuaScript LOCK_ALL = new LuaScript(
+            "local n = #KEYS / 2 " +
+                    "for i = 1, n do " +
+                    "if (redis.call('exists', KEYS[i]) == 1) then " +
+                    "local ttl = redis.call('pttl', KEYS[i]) " +
+                    "if ttl < 0 then ttl = 0 end " +
+                    "return ttl " +
+                    "end " +
+                    "if (redis.call('zcard', KEYS[n + i]) > 0) then return 0 end " +
+                    "end " +
+                    "for i = 1, n do " +
+                    "redis.call('set', KEYS[i], ARGV[1], 'PX', ARGV[2]) " +
+                    "end " +
+                    "return -1"
+    );
+
+    /**
+     * 同时锁多个 key，全部成功或全部失败
+     * key 排序去重后加锁，不会与其他 lockAll 互相等待
+     */
+    @Override
+    public long lockAll(String... keys) {
+        if (keys == null || keys.length == 0) throw new IllegalArgumentException();
+
+        String[] sorted = new TreeSet<>(Arrays.asList(keys)).toArray(new String[0]);
+        if (sorted.length == 1) return lock(sorted[0]);
+
+        Held held = reserve(sorted);
+        boolean locked = false;
+        try {
+            lockAll(sorted, String.valueOf(held.stamp));
+            locked = true;
+        } finally {
+            if (!locked) stampMap.remove(held.stamp, held);
+        }
+
+        held.holds.set(1);
+        if (watchdog && !watching) watch();
+        return held.stamp;
     }
 
-    private long lock(String key, int depth) {
+    private void lockAll(String[] keys, String value) {
+        String[] params = new String[keys.length * 2 + 2];
+        for (int i = 0; i < keys.length; i++) {
+            params[i] = PREFIX + keys[i];
+            params[keys.length + i] = QUEUE_PREFIX + keys[i];
+        }
+        params[keys.length * 2] = value;
+        params[keys.length * 2 + 1] = String.valueOf(leaseMs);
+
+        long deadline = System.currentTimeMillis() + waitMs;
+        for (int depth = 0; ; ) {
+            long wait = (Long) redis.execute(jedis -> LOCK_ALL.eval(jedis, keys.length * 2, params));
+            if (wait < 0) return;
+
+            if (waitMs > 0) {
+                if (System.currentTimeMillis() >= deadline)
+                    throw new IllegalStateException("[lockAll] " + Arrays.toString(keys) +
+                            " wait timeout: " + waitMs + "ms");
+            } else if (depth++ > RECURSION_DEPTH_LIMIT) {
+                throw new StackOverflowError("[lockAll] " + Arrays.toString(keys) +
+                        " maximum recursion depth: " + depth);
+            }
+
+            try {
+                // 休眠一个随机时间，以防和其他线程、进程同时争抢锁
+                Thread.sleep(random.nextInt(MAX_SLEEP_MS - MIN_SLEEP_MS) + MIN_SLEEP_MS);
+            } catch (InterruptedException ignored) {
+            }
+        }
+    }
+
+    private void lock(String key, String value, int depth) {
 
         // 注意自增，尝试次数过多，失败
         if (depth++ > RECURSION_DEPTH_LIMIT)
             throw new StackOverflowError("[lock] \'" + key +
                     "\' maximum recursion depth: " + depth);
 
-        long stamp;
-        do {
-            stamp = random.nextLong();
-        } while (stampMap.containsKey(stamp));
-
-        String status = redis.set(
+        String status = redis.execute(jedis -> jedis.set(
                 PREFIX + key,
-                String.valueOf(stamp),
+                value,
                 "NX", // Only set the key if it does not already exist
                 "PX", // milliseconds
-                LOCK_MS
-        );
+                leaseMs
+        ));
 
         if (!"OK".equals(status)) {
             //  没拿到 orz_
@@ -88,26 +318,221 @@ public class RedisLockImpl implements Lock {
             } catch (InterruptedException ignored) {
             }
 
-            // 再试，注意 return 为必须
-            return this.lock(key, depth);
+            // 再试
+            this.lock(key, value, depth);
         }
+    }
 
-        // 拿到锁了，>_<!，赶紧藏起来
-        String cacheKey = stampMap.put(stamp, key);
+    // 清理失效的等待者，锁空闲且自己是队首（或无人排队）时加锁，返回 -1
+    // 否则进入队列并刷新存活期限，返回锁的剩余毫秒数
+    private static final LuaScript QUEUED_ACQUIRE = new LuaScript(
+            "local expired = redis.call('zrangebyscore', KEYS[3], '-inf', ARGV[3]) " +
+                    "for i, v in ipairs(expired) do redis.call('zrem', KEYS[2], v) end " +
+                    "if #expired > 0 then redis.call('zremrangebyscore', KEYS[3], '-inf', ARGV[3]) end " +
+                    "if (redis.call('exists', KEYS[1]) == 0) then " +
+                    "local head = redis.call('zrange', KEYS[2], 0, 0)[1] " +
+                    "if (not head) or head == ARGV[1] then " +
+                    "redis.call('zrem', KEYS[2], ARGV[1]) " +
+                    "redis.call('zrem', KEYS[3], ARGV[1]) " +
+                    "redis.call('set', KEYS[1], ARGV[1], 'PX', ARGV[2]) " +
+                    "return -1 " +
+                    "end " +
+                    "end " +
+                    "if not redis.call('zscore', KEYS[2], ARGV[1]) then " +
+                    "redis.call('zadd', KEYS[2], ARGV[3], ARGV[1]) " +
+                    "end " +
+                    "redis.call('zadd', KEYS[3], ARGV[3] + ARGV[4], ARGV[1]) " +
+                    "redis.call('pexpire', KEYS[2], ARGV[4]) " +
+                    "redis.call('pexpire', KEYS[3], ARGV[4]) " +
+                    "local ttl = redis.call('pttl', KEYS[1]) " +
+                    "if ttl < 0 then ttl = 0 end " +
+                    "return ttl"
+    );
 
-        // 有没释放的锁头，原因不明
-        if (cacheKey != null)
-            System.err.println("lock() oldKey=" + cacheKey + ", value=" + key + stamp);
+    // 离开队列，锁空闲时通知新的队首
+    private static final LuaScript QUEUED_CANCEL = new LuaScript(
+            "redis.call('zrem', KEYS[2], ARGV[1]) " +
+                    "redis.call('zrem', KEYS[3], ARGV[1]) " +
+                    "if (redis.call('exists', KEYS[1]) == 0) then " +
+                    "local head = redis.call('zrange', KEYS[2], 0, 0)[1] " +
+                    "if head then redis.call('publish', ARGV[2], head) end " +
+                    "end " +
+                    "return nil"
+    );
+
+    /**
+     * 排队锁，按进入队列的顺序获得
+     */
+    private void queuedLock(String key, long stamp, long deadline) {
+        String value = String.valueOf(stamp);
+
+        // 没有竞争时一次通信
+        long wait = queuedAcquire(key, value);
+        if (wait < 0) return;
 
-        return stamp;
+        // 只在等待期间订阅，同一个 provider 共用
+        String channel = CHANNEL_PREFIX + key;
+        LockWaiters waiters = LockWaiters.acquire(redis);
+        waiters.add(channel, stamp);
+        boolean interrupted = false;
+        try {
+            while (true) {
+                // 开始等待通知后再试一次，避免漏掉之前的通知
+                wait = queuedAcquire(key, value);
+                if (wait < 0) return;
+
+                long remain = deadline - System.currentTimeMillis();
+                if (remain <= 0) break;
+
+                // 锁过期或队首离开时没有通知，需要定时醒来
+                long park = Math.min(remain, MAX_PARK_MS);
+                if (wait > 0) park = Math.min(park, wait);
+                LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(park));
+
+                if (Thread.interrupted()) {
+                    interrupted = true;
+                    break;
+                }
+            }
+        } finally {
+            waiters.remove(channel, stamp);
+            waiters.release();
+        }
+
+        redis.execute(jedis -> QUEUED_CANCEL.eval(
+                jedis,
+                3,
+                PREFIX + key,
+                QUEUE_PREFIX + key,
+                ALIVE_PREFIX + key,
+                value,
+                channel
+        ));
+
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("[lock] \'" + key + "\' interrupted");
+        }
+        throw new IllegalStateException("[lock] \'" + key + "\' wait timeout: " + waitMs + "ms");
+    }
+
+    private long queuedAcquire(String key, String value) {
+        return (Long) redis.execute(jedis -> QUEUED_ACQUIRE.eval(
+                jedis,
+                3,
+                PREFIX + key,
+                QUEUE_PREFIX + key,
+                ALIVE_PREFIX + key,
+                value,
+                String.valueOf(leaseMs),
+                String.valueOf(System.currentTimeMillis()),
+                String.valueOf(ALIVE_MS)
+        ));
+    }
+
+    /**
+     * 开始定时续约，实例被回收后停止
+     */
+    private synchronized void watch() {
+        if (watching) return;
+        long period = Math.max(1, leaseMs / 3);
+        WeakReference<RedisLockImpl> ref = new WeakReference<>(this);
+        WATCHDOG.scheduleWithFixedDelay(() -> {
+            RedisLockImpl lock = ref.get();
+            if (lock == null) throw new CancellationException(); // 抛出后不再执行
+            lock.renew();
+        }, period, period, TimeUnit.MILLISECONDS);
+        watching = true;
     }
 
-    private static final String EXPIRE_IF_EXIST_VALUE =
+    // 仍被 stamp 持有时重置过期时间
+    private static final LuaScript PEXPIRE_IF_EXIST_VALUE = new LuaScript(
+            "if (redis.call('get', KEYS[1]) == ARGV[1]) then " +
+                    "return redis.call('pexpire', KEYS[1], ARGV[2]) " +
+                    "end " +
+                    "return 0"
+    );
+
+    /**
+     * 续约所有持有的锁
+     */
+    private void renew() {
+        List<Held> list = new ArrayList<>();
+        for (Held held : stampMap.values()) {
+            if (held.holds.get() <= 0 || held.lost) continue;
+            if (!held.owner.isAlive()) {
+                // 持有线程已结束，不再续约，等待过期
+                if (held.holds.getAndSet(0) > 0) {
+                    if (reentrant) heldMap.remove(held.key, held);
+                    stampMap.remove(held.stamp, held);
+                    exitLocal(held.key, held.local);
+                    System.err.println("renew() owner dead, keys=" + Arrays.toString(held.keys) + ", owner=" + held.owner.getName());
+                }
+                continue;
+            }
+            list.add(held);
+        }
+        if (list.isEmpty()) return;
+
+        // 多个 key 的锁逐个续约
+        List<Held> owners = new ArrayList<>(list.size());
+        List<String> keys = new ArrayList<>(list.size());
+        for (Held held : list) {
+            for (String key : held.keys) {
+                owners.add(held);
+                keys.add(key);
+            }
+        }
+
+        try {
+            List<Object> results = redis.execute(jedis -> renew(jedis, owners, keys, true));
+            for (int i = 0; i < results.size(); i++) {
+                if (!Long.valueOf(0L).equals(results.get(i))) continue;
+                // 已过期或被其他人持有
+                Held held = owners.get(i);
+                held.lost = true;
+                System.err.println("renew() lost key=" + keys.get(i) + ", stamp=" + held.stamp);
+            }
+        } catch (RuntimeException e) {
+            System.err.println("renew() " + e);
+        }
+    }
+
+    private List<Object> renew(Jedis jedis, List<Held> owners, List<String> keys, boolean retry) {
+        Pipeline pipeline = jedis.pipelined();
+        String lease = String.valueOf(leaseMs);
+        List<Response<Object>> responses = new ArrayList<>(keys.size());
+        for (int i = 0; i < keys.size(); i++) {
+            responses.add(PEXPIRE_IF_EXIST_VALUE.eval(
+                    pipeline,
+                    1,
+                    PREFIX + keys.get(i),
+                    String.valueOf(owners.get(i).stamp),
+                    lease
+            ));
+        }
+        pipeline.sync();
+
+        List<Object> results = new ArrayList<>(responses.size());
+        for (Response<Object> response : responses) {
+            try {
+                results.add(response.get());
+            } catch (JedisDataException e) {
+                if (!retry || !LuaScript.isNoScript(e)) throw e;
+                PEXPIRE_IF_EXIST_VALUE.load(jedis);
+                return renew(jedis, owners, keys, false);
+            }
+        }
+        return results;
+    }
+
+    private static final LuaScript EXPIRE_IF_EXIST_VALUE = new LuaScript(
             "if (redis.call('get', KEYS[1]) == ARGV[1]) then " +
                     "local e = redis.call('ttl', KEYS[1]) + ARGV[2] " +
                     "return redis.call('expire', KEYS[1], e) " +
                     "end " +
-                    "return 0";
+                    "return 0"
+    );
 
     /**
      * 延长锁时间，会追加一个周期时间
@@ -117,8 +542,14 @@ public class RedisLockImpl implements Lock {
      */
     @Override
     public boolean delayUnlock(long stamp) {
-        String key = stampMap.get(stamp);
-        if (key == null) return false;
+        Held held = stampMap.get(stamp);
+        if (held == null || held.holds.get() <= 0) return false;
+        boolean delayed = true;
+        for (String key : held.keys) delayed &= delayUnlock(key, stamp);
+        return delayed;
+    }
+
+    private boolean delayUnlock(String key, long stamp) {
         Object status =
 //                redis.set(
 //                        PREFIX + key,
@@ -127,37 +558,156 @@ public class RedisLockImpl implements Lock {
 //                        "PX", // milliseconds
 //                        LOCK_MS
 //                );
-                redis.eval(
-                        EXPIRE_IF_EXIST_VALUE,
+                redis.execute(jedis -> EXPIRE_IF_EXIST_VALUE.eval(
+                        jedis,
                         1,
                         PREFIX + key,
                         String.valueOf(stamp),
-                        String.valueOf(LOCK_MS / 1000) // seconds
-                );
+                        String.valueOf(Math.max(1, leaseMs / 1000)) // seconds
+                ));
         return 1L == (Long) status;
     }
 
+    // 如果 key 和 value 都相同则删除，并通知排队的队首
+    private static final LuaScript DEL_IF_EXIST_VALUE_NOTIFY = new LuaScript(
+            "if (redis.call('get', KEYS[1]) == ARGV[1]) then " +
+                    "redis.call('del', KEYS[1]) " +
+                    "local head = redis.call('zrange', KEYS[2], 0, 0)[1] " +
+                    "if head then redis.call('publish', ARGV[2], head) end " +
+                    "return 1 " +
+                    "end " +
+                    "return nil"
+    );
+
     // 如果 key 和 value 都相同则删除
-    private static final String DEL_IF_EXIST_VALUE =
+    private static final LuaScript DEL_IF_EXIST_VALUE = new LuaScript(
             "if (redis.call('get', KEYS[1]) == ARGV[1]) then " +
                     "return redis.call('del', KEYS[1]) " +
                     "end " +
-                    "return nil";
+                    "return nil"
+    );
 
     /**
      * 解锁
+     * 可重入时，解锁次数与加锁次数相同才释放
      */
     @Override
     public void unlock(long stamp) {
-        String key = stampMap.get(stamp);
-        if (key != null) {
-            redis.eval(
-                    DEL_IF_EXIST_VALUE,
-                    1,
-                    PREFIX + key,
-                    String.valueOf(stamp)
-            );
-            stampMap.remove(stamp);
+        Held held = stampMap.get(stamp);
+        // 没有持有、已经释放或仍被重入
+        if (held == null || held.release() != 0) return;
+
+        String key = held.key;
+        if (reentrant && held.keys.length == 1) heldMap.remove(key, held);
+        try {
+            if (held.keys.length > 1) {
+                unlockAll(held.keys, String.valueOf(stamp));
+            } else if (waitMs > 0) {
+                redis.execute(jedis -> DEL_IF_EXIST_VALUE_NOTIFY.eval(
+                        jedis,
+                        2,
+                        PREFIX + key,
+                        QUEUE_PREFIX + key,
+                        String.valueOf(stamp),
+                        CHANNEL_PREFIX + key
+                ));
+            } else {
+                redis.execute(jedis -> DEL_IF_EXIST_VALUE.eval(
+                        jedis,
+                        1,
+                        PREFIX + key,
+                        String.valueOf(stamp)
+                ));
+            }
+        } finally {
+            stampMap.remove(stamp, held);
+            exitLocal(key, held.local);
+        }
+    }
+
+    // 删除仍被 stamp 持有的 key，并通知各自排队的队首
+    // KEYS 前半为锁，后半为对应的队列，ARGV[1 + i] 为第 i 个 key 的频道
+    private static final LuaScript UNLOCK_ALL = new LuaScript(
+            "local n = #KEYS / 2 " +
+                    "local count = 0 " +
+                    "for i = 1, n do " +
+                    "if (redis.call('get', KEYS[i]) == ARGV[1]) then " +
+                    "redis.call('del', KEYS[i]) " +
+                    "count = count + 1 " +
+                    "local head = redis.call('zrange', KEYS[n + i], 0, 0)[1] " +
+                    "if head then redis.call('publish', ARGV[1 + i], head) end " +
+                    "end " +
+                    "end " +
+                    "return count"
+    );
+
+    /**
+     * 一次释放 {@link #lockAll} 获得的所有 key，与 {@link #unlock} 相同
+     */
+    @Override
+    public void unlockAll(long stamp) {
+        unlock(stamp);
+    }
+
+    private void unlockAll(String[] keys, String value) {
+        String[] params = new String[keys.length * 3 + 1];
+        for (int i = 0; i < keys.length; i++) {
+            params[i] = PREFIX + keys[i];
+            params[keys.length + i] = QUEUE_PREFIX + keys[i];
+            params[keys.length * 2 + 1 + i] = CHANNEL_PREFIX + keys[i];
+        }
+        params[keys.length * 2] = value;
+        redis.execute(jedis -> UNLOCK_ALL.eval(jedis, keys.length * 2, params));
+    }
+
+    /**
+     * 同一个 key 的本地锁，不区分线程，可以由其他线程解锁
+     */
+    private static class Local {
+
+        private final Semaphore permit = new Semaphore(1, true);
+        private int users; // 持有和等待的线程数，只在 compute 中修改
+    }
+
+    /**
+     * 已获得（或正在获得）的锁
+     */
+    private static class Held {
+
+        private final long stamp;
+        private final String key;
+        private final String[] keys; // 多个 key 时使用，已排序
+        private final Thread owner = Thread.currentThread();
+        private final AtomicInteger holds = new AtomicInteger(); // 0 为未获得或已释放
+        private volatile boolean lost; // 续约时发现已不再持有
+        private Local local; // 本地锁，在 holds 设置前赋值
+
+        Held(long stamp, String key) {
+            this(stamp, new String[]{key});
+        }
+
+        Held(long stamp, String[] keys) {
+            this.stamp = stamp;
+            this.key = keys[0];
+            this.keys = keys;
+        }
+
+        /**
+         * 重入，已释放的不能再使用
+         */
+        boolean retain() {
+            for (int n = holds.get(); n > 0; n = holds.get())
+                if (holds.compareAndSet(n, n + 1)) return true;
+            return false;
+        }
+
+        /**
+         * @return 剩余次数，为 0 时需要真正释放，没有持有时为 -1
+         */
+        int release() {
+            for (int n = holds.get(); n > 0; n = holds.get())
+                if (holds.compareAndSet(n, n - 1)) return n - 1;
+            return -1;
         }
     }
 
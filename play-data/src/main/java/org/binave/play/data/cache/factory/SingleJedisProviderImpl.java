@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) 2017 bin jin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.binave.play.data.cache.factory;
+
+import org.binave.play.data.api.RedisProvider;
+import redis.clients.jedis.Jedis;
+
+import java.util.function.Function;
+
+/**
+ * 单连接实现
+ * 所有调用在同一个连接上排队执行
+ *
+ * @author by bin jin on 2017/6/10.
+ * @since 1.8
+ */
+class SingleJedisProviderImpl implements RedisProvider {
+
+    private String url;
+    private final Jedis redis;
+    private BorrowStats stats = new BorrowStats();
+    private volatile int active;
+
+    SingleJedisProviderImpl(Jedis redis) {
+        if (redis == null) throw new IllegalArgumentException();
+        this.url = redis.getClient().getHost() + redis.getDB();
+        this.redis = redis;
+    }
+
+    @Override
+    public String getUrl() {
+        return url;
+    }
+
+    @Override
+    public <R> R execute(Function<Jedis, R> action) {
+        long begin = System.nanoTime();
+        synchronized (redis) {
+            stats.record(System.nanoTime() - begin);
+            active = 1;
+            try {
+                return action.apply(redis);
+            } finally {
+                active = 0;
+            }
+        }
+    }
+
+    @Override
+    public int getActive() {
+        return active;
+    }
+
+    @Override
+    public long getMeanBorrowWaitMicros() {
+        return stats.getMeanMicros();
+    }
+
+    @Override
+    public long getMaxBorrowWaitMicros() {
+        return stats.getMaxMicros();
+    }
+
+    @Override
+    public String toString() {
+        return "SingleJedisProviderImpl{" +
+                "url='" + url + '\'' +
+                ", stats=" + stats +
+                '}';
+    }
+}
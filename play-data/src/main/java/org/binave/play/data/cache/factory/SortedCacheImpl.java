@@ -19,26 +19,56 @@ package org.binave.play.data.cache.factory;
 import org.binave.common.serialize.Codec;
 import org.binave.common.util.CharUtil;
 import org.binave.common.util.FutureTime;
+import org.binave.play.data.api.Batch;
 import org.binave.play.data.api.Cache;
-import redis.clients.jedis.Jedis;
+import org.binave.play.data.api.RedisProvider;
 import redis.clients.jedis.Pipeline;
 import redis.clients.jedis.Response;
-
-import java.util.Set;
+import redis.clients.jedis.params.sortedset.ZAddParams;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * 常驻缓存，将保存规定序列
- * todo 将会修改成 lua 脚本，以减少通信次数和保证原子性
+ * 读写在一次管道中完成，trim 和孤立 key 的修复使用 lua 脚本，在服务端分批执行
  *
  * @author bin jin on 2017/4/18.
  * @since 1.8
  */
-class SortedCacheImpl implements Cache {
+class SortedCacheImpl implements Cache, Batch {
 
     // 2017-2-01 00:00
     private static final long BEGIN_TIME = 1485878400_000L;
     private static final String SORTED_PREFIX = "SORT_";
     private static final String HASH_PREFIX = "HASH_";
+    private static final int TRIM_BATCH = 1000; // 每次脚本最多删除的数量
+    private static final int TRIM_ROUNDS = 10; // 每次 trim 最多执行的脚本次数，剩余的留给下次
+    private static final int TOUCH_CAPACITY = 10_000; // 本地记录刷新时间的数量
+    private static final long REPAIR_MS = 200; // 修复间隔
+    private static final int REPAIR_BATCH = 500; // 每次脚本修复的数量
+    private static final int REPAIR_CAPACITY = 10_000; // 待修复的最大数量，超出的留给巡检
+    private static final ZAddParams TOUCH_ONLY = ZAddParams.zAddParams().xx(); // 只刷新已有成员，不新增
+    private static final int SWEEP_TICKS = 50; // 每隔多少次修复巡检一次
+    private static final int SWEEP_BATCH = 100; // 每次巡检 score 最小的数量
+
+    // 所有实例共用的修复线程
+    private static final ScheduledExecutorService REPAIRER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "sorted-cache-repair");
+        thread.setDaemon(true);
+        return thread;
+    });
 
     private byte[] SortedMainKey; // 有序集合
     private byte[] HashMainKey; // set 集合
@@ -49,26 +79,51 @@ class SortedCacheImpl implements Cache {
     }
 
     private String url;
-    private Pipeline redis;
+    private RedisProvider redis;
 
     private FutureTime futureTime;
     private int index;
+    private CycleExpiry expiry;
 
     // 序列化反序列化工具
     private Codec codec;
 
-    SortedCacheImpl(String key, Jedis jedis, FutureTime futureTime, int index, Codec codec) {
+    // 读取时刷新权重的条件
+    private long touchMs; // 距上次刷新超过此时间才刷新，0 为每次
+    private double touchProbability; // 刷新的概率，1 为每次
+    private LocalBoundedCacheImpl touches; // 上次刷新时间
+
+    // 有序集合中有，hash 中没有的 key，后台批量删除
+    private final Queue<byte[]> orphans = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger orphanCount = new AtomicInteger();
+    private volatile boolean repairing;
+    private int repairTicks; // 只在修复线程中使用
+
+    SortedCacheImpl(String key, RedisProvider redis, FutureTime futureTime, int index, Codec codec) {
+        this(key, redis, futureTime, index, codec, 0, 1);
+    }
+
+    /**
+     * @param touchMs           读取时距上次刷新权重超过此毫秒数才刷新，0 为每次刷新
+     * @param touchProbability  读取时刷新权重的概率，1 为每次刷新
+     */
+    SortedCacheImpl(String key, RedisProvider redis, FutureTime futureTime, int index, Codec codec,
+                    long touchMs, double touchProbability) {
 
-        if (key == null || key.isEmpty() || jedis == null || codec == null)
+        if (key == null || key.isEmpty() || redis == null || codec == null)
             throw new IllegalArgumentException();
 
-        this.url = jedis.getClient().getHost() + jedis.getDB();
+        this.url = redis.getUrl();
         this.futureTime = futureTime;
-        this.redis = jedis.pipelined();
+        this.redis = redis;
         SortedMainKey = CharUtil.toBytes(SORTED_PREFIX + key);
         HashMainKey = CharUtil.toBytes(HASH_PREFIX + key);
         this.index = index;
         this.codec = codec;
+        this.expiry = new CycleExpiry(futureTime, index);
+        this.touchMs = touchMs;
+        this.touchProbability = touchProbability;
+        if (touchMs > 0) this.touches = new LocalBoundedCacheImpl(TOUCH_CAPACITY);
     }
 
     // 用于缓存排序
@@ -76,6 +131,29 @@ class SortedCacheImpl implements Cache {
         return System.currentTimeMillis() - BEGIN_TIME;
     }
 
+    /**
+     * 读取时是否需要刷新权重
+     * 近似 LRU，热点 key 不会每次读取都产生一次写入
+     */
+    private boolean touch(Object key) {
+        if (touchProbability < 1 && ThreadLocalRandom.current().nextDouble() >= touchProbability) return false;
+        if (touches == null) return true;
+        long now = System.currentTimeMillis();
+        Long last = touches.get(key, Long.class);
+        if (last != null && now - last < touchMs) return false;
+        touches.put(key, now);
+        return true;
+    }
+
+    // 写入时已刷新权重
+    private void touched(Object key) {
+        if (touches != null) touches.put(key, System.currentTimeMillis());
+    }
+
+    private void untouched(Object key) {
+        if (touches != null) touches.remove(key);
+    }
+
     /**
      * @return {@link Boolean}
      */
@@ -83,10 +161,14 @@ class SortedCacheImpl implements Cache {
     public Object put(Object key, Object value) {
         byte[] keyBytes = CharUtil.toBytes(key);
         byte[] valueBytes = codec.encode(value);
-        redis.hset(HashMainKey, keyBytes, valueBytes);
-        redis.zadd(SortedMainKey, auto(), keyBytes);
-        redis.sync();
-        return true;
+        touched(key);
+        return redis.execute(jedis -> {
+            Pipeline pipeline = jedis.pipelined();
+            pipeline.hset(HashMainKey, keyBytes, valueBytes);
+            pipeline.zadd(SortedMainKey, auto(), keyBytes);
+            pipeline.sync();
+            return true;
+        });
     }
 
     /**
@@ -94,11 +176,15 @@ class SortedCacheImpl implements Cache {
      */
     @Override
     public Object remove(Object key) {
-        byte[] keyBytes = CharUtil.toBytes(key);
-        redis.zrem(SortedMainKey, keyBytes);
-        redis.hdel(HashMainKey, keyBytes);
-        redis.sync();
-        return false;
+        untouched(key);
+        return redis.execute(jedis -> {
+            Pipeline pipeline = jedis.pipelined();
+            byte[] keyBytes = CharUtil.toBytes(key);
+            pipeline.zrem(SortedMainKey, keyBytes);
+            pipeline.hdel(HashMainKey, keyBytes);
+            pipeline.sync();
+            return false;
+        });
     }
 
     /**
@@ -106,25 +192,28 @@ class SortedCacheImpl implements Cache {
      */
     @Override
     public <T> T get(Object key, Class<T> type) {
-
-        // 获取时刷新权重值
-        byte[] keyBytes = CharUtil.toBytes(key);
-
-        Response<byte[]> hgetResp = redis.hget(HashMainKey, keyBytes);
-        redis.zadd(SortedMainKey, auto(), keyBytes);
-        redis.sync();
-        byte[] values = hgetResp.get();
-
-        if (values == null || values.length == 0) {
-            // 如果没取到，需要进行删除，有需要可以改成异步
-            redis.zrem(SortedMainKey, keyBytes);
-            redis.hdel(HashMainKey, keyBytes);
-            redis.sync();
-            return null;
-        }
-
-        // 可能插入解压或其他
-        return codec.decode(values, type);
+        boolean touch = touch(key);
+        return redis.execute(jedis -> {
+            Pipeline pipeline = jedis.pipelined();
+
+            // 获取时刷新权重值，xx 不会为不存在的 key 加入成员
+            byte[] keyBytes = CharUtil.toBytes(key);
+
+            Response<byte[]> hgetResp = pipeline.hget(HashMainKey, keyBytes);
+            if (touch) pipeline.zadd(SortedMainKey, auto(), keyBytes, TOUCH_ONLY);
+            pipeline.sync();
+            byte[] values = hgetResp.get();
+
+            if (values == null || values.length == 0) {
+                untouched(key);
+                // 如果没取到，需要进行删除，在后台进行
+                repairLater(keyBytes);
+                return null;
+            }
+
+            // 可能插入解压或其他
+            return codec.decode(values, type);
+        });
     }
 
     @Override
@@ -134,47 +223,174 @@ class SortedCacheImpl implements Cache {
     }
 
     /**
-     * 定时进行清理
-     * 除了保留大小，其他都干掉
+     * 一次管道完成 hmget 和刷新权重
+     * 需要刷新的 key 与 get 相同
      */
     @Override
-    public synchronized void trim(int live) {
-
-        // 获得大小
-        Response<Long> zcardResp = redis.zcard(SortedMainKey);
-
-        // 获得过期时间
-        Response<Long> ttlSortResp = redis.ttl(SortedMainKey);
-        Response<Long> ttlHashResp = redis.ttl(HashMainKey);
-        redis.sync();
+    public <T> List<T> getAll(List<?> keys, Class<T> type) {
+        return redis.execute(jedis -> {
+            Pipeline pipeline = jedis.pipelined();
+            byte[][] keysBytes = new byte[keys.size()][];
+            Map<byte[], Double> scores = new HashMap<>();
+            double score = auto();
+            for (int i = 0; i < keysBytes.length; i++) {
+                keysBytes[i] = CharUtil.toBytes(keys.get(i));
+                if (touch(keys.get(i))) scores.put(keysBytes[i], score);
+            }
+
+            Response<List<byte[]>> hmgetResp = pipeline.hmget(HashMainKey, keysBytes);
+            if (!scores.isEmpty()) pipeline.zadd(SortedMainKey, scores, TOUCH_ONLY);
+            pipeline.sync();
+
+            List<byte[]> values = hmgetResp.get();
+            List<T> result = new ArrayList<>(values.size());
+            for (int i = 0; i < values.size(); i++) {
+                byte[] value = values.get(i);
+                if (value == null || value.length == 0) {
+                    // 没取到的，需要进行删除，在后台进行
+                    untouched(keys.get(i));
+                    repairLater(keysBytes[i]);
+                    result.add(null);
+                } else result.add(codec.decode(value, type));
+            }
+            return result;
+        });
+    }
 
-        boolean newKey = ttlSortResp.get() < 0 || ttlHashResp.get() < 0; // -1 / -2 没有过期时间 或 没有key
+    /**
+     * @return {@link Boolean}
+     */
+    @Override
+    public Object putAll(Map<?, ?> map) {
+        return redis.execute(jedis -> {
+            Pipeline pipeline = jedis.pipelined();
+            Map<byte[], Double> scores = new HashMap<>();
+            double score = auto();
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                byte[] keyBytes = CharUtil.toBytes(entry.getKey());
+                pipeline.hset(HashMainKey, keyBytes, codec.encode(entry.getValue()));
+                scores.put(keyBytes, score);
+                touched(entry.getKey());
+            }
+            pipeline.zadd(SortedMainKey, scores);
+            pipeline.sync();
+            return true;
+        });
+    }
 
-        if (newKey) {
-            long unixTime = futureTime.getMillisecond(index, 1, true, false);
-            redis.expireAt(SortedMainKey, unixTime);
-            redis.expireAt(HashMainKey, unixTime);
+    /**
+     * 加入待修复队列，已满时丢弃，由巡检处理
+     */
+    private void repairLater(byte[] keyBytes) {
+        if (orphanCount.incrementAndGet() > REPAIR_CAPACITY) {
+            orphanCount.decrementAndGet();
+            return;
         }
+        orphans.offer(keyBytes);
+        if (!repairing) startRepair();
+    }
 
-        long size = zcardResp.get();
+    /**
+     * 开始定时修复，实例被回收后停止
+     */
+    private synchronized void startRepair() {
+        if (repairing) return;
+        WeakReference<SortedCacheImpl> ref = new WeakReference<>(this);
+        REPAIRER.scheduleWithFixedDelay(() -> {
+            SortedCacheImpl cache = ref.get();
+            if (cache == null) throw new CancellationException(); // 抛出后不再执行
+            cache.repair();
+        }, REPAIR_MS, REPAIR_MS, TimeUnit.MILLISECONDS);
+        repairing = true;
+    }
 
-        // 检测长度
-        if (size > live) {
+    // 删除 hash 中没有值（或为空）的 key，ARGV[1] 为巡检 score 最小的数量，之后为待修复的 key
+    // 执行时再次确认，期间重新写入的不会被删除
+    private static final LuaScript REPAIR = new LuaScript(
+            "local removed = 0 " +
+                    "local function repair(m) " +
+                    "local v = redis.call('hget', KEYS[2], m) " +
+                    "if (not v) or v == '' then " +
+                    "redis.call('zrem', KEYS[1], m) " +
+                    "if v then redis.call('hdel', KEYS[2], m) end " +
+                    "removed = removed + 1 " +
+                    "end " +
+                    "end " +
+                    "for i = 2, #ARGV do repair(ARGV[i]) end " +
+                    "local n = tonumber(ARGV[1]) " +
+                    "if n > 0 then " +
+                    "for _, m in ipairs(redis.call('zrange', KEYS[1], 0, n - 1)) do repair(m) end " +
+                    "end " +
+                    "return removed"
+    );
 
-            // 获得 score 比较小的，多出 liveRange 部分的列表
-            Response<Set<byte[]>> zrangeResp = redis.zrange(SortedMainKey, 0, size - live);
-            redis.sync();
+    /**
+     * 批量修复，定期巡检 score 最小的部分
+     */
+    private void repair() {
+        boolean sweep = ++repairTicks % SWEEP_TICKS == 0;
+        if (orphans.isEmpty() && !sweep) return;
+        try {
+            do {
+                List<byte[]> params = new ArrayList<>(REPAIR_BATCH + 3);
+                params.add(SortedMainKey);
+                params.add(HashMainKey);
+                params.add(CharUtil.toBytes(String.valueOf(sweep ? SWEEP_BATCH : 0)));
+                byte[] keyBytes;
+                while (params.size() < REPAIR_BATCH + 3 && (keyBytes = orphans.poll()) != null) {
+                    orphanCount.decrementAndGet();
+                    params.add(keyBytes);
+                }
+                redis.execute(jedis -> REPAIR.eval(jedis, 2, params.toArray(new byte[params.size()][])));
+                sweep = false;
+            } while (!orphans.isEmpty());
+        } catch (RuntimeException e) {
+            System.err.println("repair() " + e);
+        }
+    }
 
-            Set<byte[]> zrangeBytes = zrangeResp.get();
-            byte[][] zrangeBytess = zrangeBytes.toArray(new byte[zrangeBytes.size()][]);
+    // 没有过期时间时设置，删除 score 最小的超出部分，每次最多 ARGV[2] 个
+    // 返回剩余的超出数量
+    private static final LuaScript TRIM = new LuaScript(
+            "if (redis.call('ttl', KEYS[1]) < 0 or redis.call('ttl', KEYS[2]) < 0) then " +
+                    "redis.call('pexpireat', KEYS[1], ARGV[3]) " +
+                    "redis.call('pexpireat', KEYS[2], ARGV[3]) " +
+                    "end " +
+                    "local over = redis.call('zcard', KEYS[1]) - tonumber(ARGV[1]) " +
+                    "if over <= 0 then return 0 end " +
+                    "local n = math.min(over, tonumber(ARGV[2])) " +
+                    "local members = redis.call('zrange', KEYS[1], 0, n - 1) " +
+                    "redis.call('zremrangebyrank', KEYS[1], 0, n - 1) " +
+                    "for i = 1, #members, 500 do " +
+                    "redis.call('hdel', KEYS[2], unpack(members, i, math.min(i + 499, #members))) " +
+                    "end " +
+                    "return over - n"
+    );
 
-            // 删除有续集中的相应部分
-            redis.zrem(SortedMainKey, zrangeBytess);
-            // 删除 hash 中的相应部分
-            redis.hdel(HashMainKey, zrangeBytess);
+    /**
+     * 定时进行清理
+     * 除了保留大小，其他都干掉
+     *
+     * 在服务端一次脚本完成，每次最多删除 {@link #TRIM_BATCH} 个，
+     * 超出太多时分多次执行，之间不阻塞 redis，剩余的留给下一次清理
+     */
+    @Override
+    public synchronized void trim(int live) {
+        byte[] liveBytes = CharUtil.toBytes(String.valueOf(live));
+        byte[] batchBytes = CharUtil.toBytes(String.valueOf(TRIM_BATCH));
+        byte[] expireAt = CharUtil.toBytes(String.valueOf(expiry.getExpireAt()));
+        for (int i = 0; i < TRIM_ROUNDS; i++) {
+            long remain = (Long) redis.execute(jedis -> TRIM.eval(
+                    jedis,
+                    2,
+                    SortedMainKey,
+                    HashMainKey,
+                    liveBytes,
+                    batchBytes,
+                    expireAt
+            ));
+            if (remain <= 0) return;
         }
-
-        if (size > live || newKey) redis.sync();
     }
 
     @Override
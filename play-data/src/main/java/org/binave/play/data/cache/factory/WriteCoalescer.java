@@ -0,0 +1,202 @@
+/*
+ * Copyright (c) 2017 bin jin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.binave.play.data.cache.factory;
+
+import org.binave.play.data.api.RedisProvider;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * 合并写入
+ * 写命令先进入队列，每隔一段时间或积累到一定数量后，用一次管道提交
+ *
+ * 提交在单独的线程中按顺序执行，不保证提交前能读到刚写入的数据
+ * 不再使用时需要 {@link #close}，否则提交线程一直存在
+ *
+ * @author by bin jin on 2017/6/12.
+ * @since 1.8
+ */
+class WriteCoalescer implements Closeable {
+
+    private final static long CLOSE_WAIT_MS = 1000; // 关闭时等待提交线程结束的时间
+
+    private RedisProvider redis;
+    private int flushCount;
+
+    private final Queue<Command<?>> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger size = new AtomicInteger();
+    private final AtomicBoolean flushing = new AtomicBoolean(); // 已安排提交
+    private final ScheduledExecutorService executor;
+    private volatile boolean closed;
+
+    /**
+     * @param flushMs       提交间隔（毫秒）
+     * @param flushCount    积累到此数量立即提交，也是一次管道的最大命令数
+     */
+    WriteCoalescer(RedisProvider redis, long flushMs, int flushCount) {
+        if (redis == null || flushMs <= 0 || flushCount <= 0) throw new IllegalArgumentException();
+        this.redis = redis;
+        this.flushCount = flushCount;
+        this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "redis-coalesce-" + redis.getUrl());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.executor.scheduleWithFixedDelay(this::flush, flushMs, flushMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 加入队列
+     *
+     * @param command   在管道上执行的命令
+     * @return          提交后完成，关闭后以 {@link IllegalStateException} 完成
+     */
+    <T> CompletableFuture<T> submit(Function<Pipeline, Response<T>> command) {
+        return submit(null, command);
+    }
+
+    /**
+     * 同上，命令为 lua 脚本时，每次提交前先加载，管道中不会出现 NOSCRIPT
+     */
+    <T> CompletableFuture<T> submit(LuaScript script, Function<Pipeline, Response<T>> command) {
+        Command<T> cmd = new Command<>(script, command);
+        if (closed) {
+            cmd.future.completeExceptionally(new IllegalStateException("coalescer closed"));
+            return cmd.future;
+        }
+        queue.add(cmd);
+        // close 在检查之后开始时，最后一次 flush 可能已经结束，从队列中取回的命令由这里结束
+        if (closed && queue.remove(cmd)) {
+            cmd.future.completeExceptionally(new IllegalStateException("coalescer closed"));
+            return cmd.future;
+        }
+        if (size.incrementAndGet() >= flushCount && flushing.compareAndSet(false, true)) {
+            try {
+                executor.execute(this::flush);
+            } catch (RejectedExecutionException e) {
+                // 与 close 同时发生，队列由 close 提交
+                flushing.set(false);
+            }
+        }
+        return cmd.future;
+    }
+
+    /**
+     * 提交队列中的全部命令，每个管道不超过 flushCount 个
+     */
+    private synchronized void flush() {
+        flushing.set(false);
+        List<Command<?>> batch = new ArrayList<>(flushCount);
+        Command<?> command;
+        while ((command = queue.poll()) != null) {
+            size.decrementAndGet();
+            batch.add(command);
+            if (batch.size() == flushCount) {
+                sync(batch);
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) sync(batch);
+    }
+
+    // 先在同一个连接上加载批次中的脚本，管道中的命令按原有顺序只执行一次
+    private void sync(List<Command<?>> batch) {
+        Set<LuaScript> scripts = new LinkedHashSet<>();
+        for (Command<?> command : batch) if (command.script != null) scripts.add(command.script);
+        try {
+            redis.execute(jedis -> {
+                for (LuaScript script : scripts) script.load(jedis);
+                Pipeline pipeline = jedis.pipelined();
+                for (Command<?> command : batch) command.apply(pipeline);
+                pipeline.sync();
+                return null;
+            });
+        } catch (RuntimeException e) {
+            for (Command<?> command : batch) command.future.completeExceptionally(e);
+            return;
+        }
+        for (Command<?> command : batch) {
+            try {
+                command.complete();
+            } catch (RuntimeException e) {
+                // 单条命令出错
+                command.future.completeExceptionally(e);
+            }
+        }
+    }
+
+    /**
+     * 停止提交线程，提交队列中剩余的命令，之后的写入不再接受
+     */
+    @Override
+    public void close() {
+        closed = true;
+        executor.shutdown();
+        try {
+            executor.awaitTermination(CLOSE_WAIT_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+    }
+
+    @Override
+    public String toString() {
+        return "WriteCoalescer{" +
+                "flushCount=" + flushCount +
+                ", pending=" + size.get() +
+                '}';
+    }
+
+    private static class Command<T> {
+
+        private final LuaScript script; // 不是脚本为 null
+        private final Function<Pipeline, Response<T>> command;
+        private final CompletableFuture<T> future = new CompletableFuture<>();
+        private Response<T> response;
+
+        Command(LuaScript script, Function<Pipeline, Response<T>> command) {
+            this.script = script;
+            this.command = command;
+        }
+
+        private void apply(Pipeline pipeline) {
+            response = command.apply(pipeline);
+        }
+
+        // 管道 sync 之后调用，命令出错时抛出
+        private void complete() {
+            future.complete(response.get());
+        }
+    }
+}